@@ -0,0 +1,117 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+/**
+ * Storage of the benchmarks, on an embedded database behind {@link TestQueryService}.
+ */
+final class BenchmarkDatabase {
+
+    static final String SQLITE = "SQLITE";
+    static final String H2_MYSQL = "H2_MYSQL";
+
+    private static final String[] VERSIONS = {"1.17.0", "1.17.10", "1.17.30", "1.18.0"};
+    private static final String[] LANGUAGES = {"en_US", "de_DE", "fi_FI", "pt_BR", "ja_JP"};
+
+    private static final DeviceOs[] DEVICES = DeviceOs.values();
+
+    private final Path directory;
+    private final TestQueryService database;
+    private final FloodgateStorage storage;
+    private final List<FloodgatePlayerData> players;
+
+    /**
+     * @param type    {@link #SQLITE} or {@link #H2_MYSQL}
+     * @param players Amount of players stored before the benchmark
+     */
+    BenchmarkDatabase(String type, int players) throws IOException, SQLException, ExecutionException, InterruptedException {
+        directory = Files.createTempDirectory("floodgate-benchmark");
+        if (SQLITE.equals(type)) {
+            database = TestQueryService.sqlite("jdbc:sqlite:" + directory.resolve("database.db"));
+        } else if (H2_MYSQL.equals(type)) {
+            database = TestQueryService.h2MySQL("benchmark" + UUID.randomUUID());
+        } else {
+            throw new IllegalArgumentException("Unknown database " + type);
+        }
+        storage = FloodgateStorageTest.startStorage(database);
+        this.players = new ArrayList<>(players);
+        for (int i = 0; i < players; i++) {
+            this.players.add(new FloodgatePlayerData(UUID.randomUUID(), DEVICES[i % DEVICES.length],
+                    "Bedrock" + i, "Java" + i, i % 3 == 0 ? "Linked" + i : null,
+                    LANGUAGES[i % LANGUAGES.length], VERSIONS[i % VERSIONS.length]));
+        }
+        for (int from = 0; from < players; from += 500) {
+            storage.storePlayers(this.players.subList(from, Math.min(players, from + 500)));
+        }
+    }
+
+    TestQueryService getDatabase() {
+        return database;
+    }
+
+    FloodgateStorage getStorage() {
+        return storage;
+    }
+
+    List<FloodgatePlayerData> getPlayers() {
+        return players;
+    }
+
+    UUID[] getPlayerUUIDs() {
+        return players.stream().map(FloodgatePlayerData::getPlayerUUID).toArray(UUID[]::new);
+    }
+
+    /**
+     * @param index Any index, wraps around the stored players
+     * @return Stored row with another language code, so that storing it writes to the database
+     */
+    FloodgatePlayerData changed(int index) {
+        int playerIndex = index % players.size();
+        FloodgatePlayerData player = players.get(playerIndex);
+        // Stored with LANGUAGES[playerIndex], each round around the players moves to the next one
+        String languageCode = LANGUAGES[(playerIndex + 1 + index / players.size()) % LANGUAGES.length];
+        return new FloodgatePlayerData(player.getPlayerUUID(), player.getPlatform(), player.getBedrockUsername(),
+                player.getJavaUsername(), player.getLinkedPlayer(), languageCode, player.getVersion());
+    }
+
+    void close() throws Exception {
+        storage.close();
+        database.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted((first, second) -> second.compareTo(first)).forEach(file -> file.toFile().delete());
+        }
+    }
+}
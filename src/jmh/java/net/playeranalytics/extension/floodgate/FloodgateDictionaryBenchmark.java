@@ -0,0 +1,125 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Lookup latency and size of plan_platforms with the version and language code in the rows (INLINE, the layout of
+ * older versions) or only in the dictionary tables (DICTIONARY, the layout once the values are emptied from the rows).
+ * <p>
+ * On SQLite the size of the database file after VACUUM is logged at the start of each trial. The in-memory H2
+ * database has no file to measure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FloodgateDictionaryBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(FloodgateDictionaryBenchmark.class.getName());
+
+    @Param({BenchmarkDatabase.SQLITE, BenchmarkDatabase.H2_MYSQL})
+    public String database;
+
+    @Param({"INLINE", "DICTIONARY"})
+    public String layout;
+
+    @Param({"10000"})
+    public int players;
+
+    private BenchmarkDatabase storage;
+    private UUID[] playerUUIDs;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        storage = new BenchmarkDatabase(database, players);
+        playerUUIDs = storage.getPlayerUUIDs();
+        Connection connection = storage.getDatabase().getConnection();
+        synchronized (connection) {
+            if ("INLINE".equals(layout)) {
+                // The table and the reads of older versions, without the dictionary
+                storage.getStorage().getDictionary().setAvailable(false);
+                execute(connection, "ALTER TABLE plan_platforms DROP COLUMN languageId");
+                execute(connection, "ALTER TABLE plan_platforms DROP COLUMN versionId");
+            } else {
+                execute(connection, "UPDATE plan_platforms SET languageCode = '', version = ''");
+            }
+            if (BenchmarkDatabase.SQLITE.equals(database)) {
+                execute(connection, "VACUUM");
+                long bytes = queryLong(connection, "PRAGMA page_count") * queryLong(connection, "PRAGMA page_size");
+                LOGGER.info(layout + ": " + bytes + " bytes in the database, " + bytes / players + " per row");
+            }
+        }
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.execute();
+        }
+    }
+
+    private static long queryLong(Connection connection, String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql);
+             ResultSet set = statement.executeQuery()) {
+            return set.next() ? set.getLong(1) : 0L;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.close();
+    }
+
+    @Benchmark
+    public Optional<FloodgatePlayerData> lookup() {
+        next = (next + 1) % playerUUIDs.length;
+        // Reads the row from the database instead of the cache
+        return storage.getStorage().reloadPlayer(playerUUIDs[next]);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the extension's own threads when every query is slow, for different concurrency limits.
+ * <p>
+ * One operation is a burst of lookups given to the executor at once, like the joins after a restart.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FloodgateExecutorBenchmark {
+
+    private static final int BURST = 100;
+
+    @Param({BenchmarkDatabase.SQLITE})
+    public String database;
+
+    @Param({"1", "4", "10"})
+    public int concurrency;
+
+    @Param({"5"})
+    public long queryDelayMs;
+
+    private BenchmarkDatabase storage;
+    private UUID[] playerUUIDs;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty("plan.floodgate.executor.dedicated", "true");
+        System.setProperty("plan.floodgate.executor.concurrency", Integer.toString(concurrency));
+        storage = new BenchmarkDatabase(database, BURST * 10);
+        playerUUIDs = storage.getPlayerUUIDs();
+        storage.getDatabase().setDelay(queryDelayMs);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.close();
+        System.clearProperty("plan.floodgate.executor.concurrency");
+    }
+
+    @Benchmark
+    public void slowLookups() throws InterruptedException {
+        FloodgateStorage floodgateStorage = storage.getStorage();
+        CountDownLatch done = new CountDownLatch(BURST);
+        for (int i = 0; i < BURST; i++) {
+            next = (next + 1) % playerUUIDs.length;
+            UUID playerUUID = playerUUIDs[next];
+            try {
+                floodgateStorage.getExecutor().execute(() -> {
+                    try {
+                        floodgateStorage.reloadPlayer(playerUUID);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException shed) {
+                done.countDown();
+            }
+        }
+        done.await();
+    }
+}
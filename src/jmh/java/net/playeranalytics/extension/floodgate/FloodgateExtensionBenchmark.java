@@ -0,0 +1,104 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one update of the extension's data: every provider, like Plan calls them for a player and the server.
+ * <p>
+ * Run with -prof gc to see the allocation rate next to the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FloodgateExtensionBenchmark {
+
+    @Param({BenchmarkDatabase.SQLITE, BenchmarkDatabase.H2_MYSQL})
+    public String database;
+
+    @Param({"1000"})
+    public int players;
+
+    private BenchmarkDatabase storage;
+    private FloodgateExtension extension;
+    private UUID[] playerUUIDs;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        storage = new BenchmarkDatabase(database, players);
+        extension = new FloodgateExtension(storage.getStorage());
+        playerUUIDs = storage.getPlayerUUIDs();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.close();
+    }
+
+    @Benchmark
+    public void providerSweep(Blackhole blackhole) {
+        next = (next + 1) % playerUUIDs.length;
+        UUID playerUUID = playerUUIDs[next];
+        // bedrock(UUID) is left out, it asks the Floodgate API that only exists on a running server
+        blackhole.consume(extension.dataAvailable(playerUUID));
+        blackhole.consume(extension.hasLinked(playerUUID));
+        blackhole.consume(extension.device(playerUUID));
+        blackhole.consume(extension.bedrockUsername(playerUUID));
+        blackhole.consume(extension.javaUsername(playerUUID));
+        blackhole.consume(extension.linkedPlayer(playerUUID));
+        blackhole.consume(extension.languageCode(playerUUID));
+        blackhole.consume(extension.version(playerUUID));
+
+        blackhole.consume(extension.bedrockPlayers());
+        blackhole.consume(extension.linkedBedrockPlayers());
+        blackhole.consume(extension.linkedRatio());
+        blackhole.consume(extension.devices());
+        blackhole.consume(extension.versions());
+        blackhole.consume(extension.languages());
+        blackhole.consume(extension.regions());
+        blackhole.consume(extension.joinsPerDay());
+        blackhole.consume(extension.deviceTrend());
+    }
+}
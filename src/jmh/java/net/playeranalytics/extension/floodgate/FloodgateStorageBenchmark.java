@@ -0,0 +1,124 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of storing a join and of the per-column getters that the player page calls.
+ * <p>
+ * Run with -prof gc to see the allocation rate next to the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FloodgateStorageBenchmark {
+
+    @Param({BenchmarkDatabase.SQLITE, BenchmarkDatabase.H2_MYSQL})
+    public String database;
+
+    @Param({"1000"})
+    public int players;
+
+    private BenchmarkDatabase storage;
+    private UUID[] playerUUIDs;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        storage = new BenchmarkDatabase(database, players);
+        playerUUIDs = storage.getPlayerUUIDs();
+        // The getters are measured with the rows cached, like on a player page that is viewed again
+        for (UUID playerUUID : playerUUIDs) {
+            storage.getStorage().getPlayer(playerUUID);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.close();
+    }
+
+    private UUID nextPlayer() {
+        next = (next + 1) % playerUUIDs.length;
+        return playerUUIDs[next];
+    }
+
+    @Benchmark
+    public void storePlayer() throws ExecutionException {
+        FloodgatePlayerData changed = storage.changed(next++);
+        storage.getStorage().storePlayer(changed.getPlayerUUID(), changed.getPlatform(), changed.getBedrockUsername(),
+                changed.getJavaUsername(), changed.getLinkedPlayer(), changed.getLanguageCode(), changed.getVersion());
+    }
+
+    @Benchmark
+    public DeviceOs getPlatform() {
+        return storage.getStorage().getPlatform(nextPlayer());
+    }
+
+    @Benchmark
+    public String getBedrockUsername() {
+        return storage.getStorage().getBedrockUsername(nextPlayer());
+    }
+
+    @Benchmark
+    public String getJavaUsername() {
+        return storage.getStorage().getJavaUsername(nextPlayer());
+    }
+
+    @Benchmark
+    public String getLinkedPlayer() {
+        return storage.getStorage().getLinkedPlayer(nextPlayer());
+    }
+
+    @Benchmark
+    public String getLanguageCode() {
+        return storage.getStorage().getLanguageCode(nextPlayer());
+    }
+
+    @Benchmark
+    public String getVersion() {
+        return storage.getStorage().getVersion(nextPlayer());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import com.djrapitops.plan.query.QueryService;
+import org.geysermc.floodgate.util.DeviceOs;
+
+import java.sql.ResultSet;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Bedrock population counts of plan_platforms by device, client version and link state.
+ * <p>
+ * Counts are loaded with one GROUP BY query and then kept up to date from the stored joins,
+ * a full reload is only done every {@link FloodgateSettings#getAggregateResyncInterval()} to correct drift.
+ */
+public class FloodgateAggregates {
+
+    private final QueryService queryService;
+    private final FloodgateDictionary dictionary;
+    private final long resyncIntervalMs;
+
+    // Guarded by this
+    private final Map<DeviceOs, Long> devices = new EnumMap<>(DeviceOs.class);
+    private final Map<String, Long> versions = new HashMap<>();
+    private long players;
+    private long linkedPlayers;
+    private long loadedAt = -1;
+
+    public FloodgateAggregates(QueryService queryService, FloodgateDictionary dictionary) {
+        this.queryService = queryService;
+        this.dictionary = dictionary;
+        this.resyncIntervalMs = FloodgateSettings.getAggregateResyncInterval();
+    }
+
+    private void reloadIfNeeded() {
+        synchronized (this) {
+            if (loadedAt != -1 && System.currentTimeMillis() - loadedAt < resyncIntervalMs) return;
+        }
+        reload();
+    }
+
+    private void reload() {
+        String version = dictionary.version();
+        String sql = "SELECT p.platform, " + version + " as version, " +
+                "CASE WHEN p.linkedPlayer IS NULL THEN 0 ELSE 1 END as linked, " +
+                "COUNT(*) as players " +
+                "FROM " + dictionary.tables() +
+                " GROUP BY p.platform, " + version + ", CASE WHEN p.linkedPlayer IS NULL THEN 0 ELSE 1 END";
+
+        queryService.query(sql, statement -> {
+            try (ResultSet set = statement.executeQuery()) {
+                synchronized (this) {
+                    clearCounts();
+                    while (set.next()) {
+                        long count = set.getLong("players");
+                        add(devices, DeviceOs.fromId(set.getInt("platform")), count);
+                        add(versions, FloodgateDictionary.intern(set.getString("version")), count);
+                        players += count;
+                        if (set.getInt("linked") == 1) linkedPlayers += count;
+                    }
+                    loadedAt = System.currentTimeMillis();
+                }
+                return null;
+            }
+        });
+    }
+
+    private void clearCounts() {
+        devices.clear();
+        versions.clear();
+        players = 0;
+        linkedPlayers = 0;
+    }
+
+    private static <K> void add(Map<K, Long> counts, K key, long amount) {
+        if (key == null) return;
+        long count = counts.getOrDefault(key, 0L) + amount;
+        if (count > 0) {
+            counts.put(key, count);
+        } else {
+            counts.remove(key);
+        }
+    }
+
+    private void add(FloodgatePlayerData data, long amount) {
+        add(devices, data.getPlatform(), amount);
+        add(versions, data.getVersion(), amount);
+        players += amount;
+        if (data.getLinkedPlayer() != null) linkedPlayers += amount;
+    }
+
+    /**
+     * Apply a stored join to the counts.
+     *
+     * @param previous Row of the player before the join, if there was one
+     * @param current  Row of the player after the join
+     */
+    public synchronized void update(Optional<FloodgatePlayerData> previous, FloodgatePlayerData current) {
+        if (loadedAt == -1) return; // Not loaded yet, counted when loading
+        previous.ifPresent(data -> add(data, -1));
+        add(current, 1);
+    }
+
+    /**
+     * Reload the counts from the database the next time they are needed.
+     */
+    public synchronized void invalidate() {
+        loadedAt = -1;
+    }
+
+    /**
+     * Reset the counts after all data was cleared.
+     */
+    public synchronized void clear() {
+        clearCounts();
+        loadedAt = System.currentTimeMillis();
+    }
+
+    public long getPlayers() {
+        reloadIfNeeded();
+        synchronized (this) {
+            return players;
+        }
+    }
+
+    public long getLinkedPlayers() {
+        reloadIfNeeded();
+        synchronized (this) {
+            return linkedPlayers;
+        }
+    }
+
+    /**
+     * @return Player counts by device, most players first
+     */
+    public List<Map.Entry<DeviceOs, Long>> getDevices() {
+        reloadIfNeeded();
+        synchronized (this) {
+            return sorted(devices);
+        }
+    }
+
+    /**
+     * @return Player counts by client version, most players first
+     */
+    public List<Map.Entry<String, Long>> getVersions() {
+        reloadIfNeeded();
+        synchronized (this) {
+            return sorted(versions);
+        }
+    }
+
+    private static <K> List<Map.Entry<K, Long>> sorted(Map<K, Long> counts) {
+        List<Map.Entry<K, Long>> entries = new ArrayList<>(counts.size());
+        for (Map.Entry<K, Long> entry : counts.entrySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+        }
+        entries.sort(Map.Entry.<K, Long>comparingByValue(Comparator.reverseOrder()));
+        return entries;
+    }
+}
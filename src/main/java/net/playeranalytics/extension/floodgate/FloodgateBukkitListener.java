@@ -25,23 +25,46 @@ package net.playeranalytics.extension.floodgate;
 
 import com.djrapitops.plan.extension.Caller;
 import com.djrapitops.plan.settings.ListenerService;
-import com.djrapitops.plan.settings.SchedulerService;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerJoinEvent;
-import org.geysermc.floodgate.api.FloodgateApi;
-import org.geysermc.floodgate.api.player.FloodgatePlayer;
-import org.geysermc.floodgate.util.LinkedPlayer;
-
-import java.util.Optional;
-import java.util.UUID;
-import java.util.concurrent.ExecutionException;
+import org.bukkit.event.server.PluginDisableEvent;
 
 public class FloodgateBukkitListener extends FloodgateListener implements Listener {
 
     public FloodgateBukkitListener(FloodgateStorage storage, Caller caller) {
-        super(storage, caller);
+        super(storage, caller, !isBehindProxy());
+    }
+
+    /**
+     * @return true if the server is set up to accept players forwarded by a BungeeCord or Velocity proxy
+     */
+    static boolean isBehindProxy() {
+        return getStaticBoolean("org.spigotmc.SpigotConfig", "bungee")
+                || getStaticBoolean("com.destroystokyo.paper.PaperConfig", "velocitySupport")
+                || isPaperVelocityEnabled();
+    }
+
+    private static boolean getStaticBoolean(String className, String fieldName) {
+        try {
+            return Class.forName(className).getField(fieldName).getBoolean(null);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException notAvailable) {
+            return false;
+        }
+    }
+
+    private static boolean isPaperVelocityEnabled() {
+        // GlobalConfiguration.get().proxies.velocity.enabled, Paper 1.19 and newer
+        try {
+            Object configuration = Class.forName("io.papermc.paper.configuration.GlobalConfiguration")
+                    .getMethod("get").invoke(null);
+            Object proxies = configuration.getClass().getField("proxies").get(configuration);
+            Object velocity = proxies.getClass().getField("velocity").get(proxies);
+            return velocity.getClass().getField("enabled").getBoolean(velocity);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException notAvailable) {
+            return false;
+        }
     }
 
     @Override
@@ -51,37 +74,12 @@ public class FloodgateBukkitListener extends FloodgateListener implements Listen
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onJoin(PlayerJoinEvent event) {
-        try {
-            UUID uuid = event.getPlayer().getUniqueId();
-
-            Optional.ofNullable(FloodgateApi.getInstance())
-                    .map(api -> api.getPlayer(uuid))
-                    .ifPresent(floodgatePlayer -> {
-                        LinkedPlayer linkedPlayer = floodgatePlayer.getLinkedPlayer();
-                        SchedulerService.getInstance()
-                                .runAsync(() -> storeData(event, uuid, floodgatePlayer, linkedPlayer));
-                    });
-        } catch (LinkageError ignored) {
-            // Related to
-            // https://github.com/plan-player-analytics/Plan/issues/2004
-            // https://github.com/GeyserMC/Floodgate/issues/178
-        }
+        onFloodgateJoin(event.getPlayer().getUniqueId(), event.getPlayer().getName());
     }
 
-    private void storeData(PlayerJoinEvent event, UUID uuid, FloodgatePlayer floodgatePlayer, LinkedPlayer linkedPlayer) {
-        try {
-            storage.storePlayer(
-                    uuid,
-                    floodgatePlayer.getDeviceOs(),
-                    floodgatePlayer.getUsername(),
-                    floodgatePlayer.getJavaUsername(),
-                    linkedPlayer != null ? linkedPlayer.getJavaUsername() : null,
-                    floodgatePlayer.getLanguageCode(),
-                    floodgatePlayer.getVersion()
-            );
-            caller.updatePlayerData(uuid, event.getPlayer().getName());
-        } catch (ExecutionException ignored) {
-            // Ignore
-        }
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginDisable(PluginDisableEvent event) {
+        // Called before Plan closes its database
+        if ("Plan".equals(event.getPlugin().getName())) close();
     }
 }
@@ -23,65 +23,35 @@
 
 package net.playeranalytics.extension.floodgate;
 
+import com.djrapitops.plan.capability.CapabilityService;
 import com.djrapitops.plan.extension.Caller;
 import com.djrapitops.plan.settings.ListenerService;
-import com.djrapitops.plan.settings.SchedulerService;
 import net.md_5.bungee.api.event.PostLoginEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 import net.md_5.bungee.event.EventPriority;
-import org.geysermc.floodgate.api.FloodgateApi;
-import org.geysermc.floodgate.api.player.FloodgatePlayer;
-import org.geysermc.floodgate.util.LinkedPlayer;
-
-import java.util.Optional;
-import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
 public class FloodgateBungeeListener extends FloodgateListener implements Listener {
 
     public FloodgateBungeeListener(FloodgateStorage storage, Caller caller) {
-        super(storage, caller);
+        super(storage, caller, true);
     }
 
     @Override
     public void register() {
         ListenerService.getInstance().registerListenerForPlan(this);
-    }
-
-    @EventHandler(priority = EventPriority.NORMAL)
-    public void onLogin(PostLoginEvent event) {
+        // BungeeCord has no event for plugins disabling, Plan tells its enable listeners when it disables.
         try {
-            UUID uuid = event.getPlayer().getUniqueId();
-
-            Optional.ofNullable(FloodgateApi.getInstance())
-                    .map(api -> api.getPlayer(uuid))
-                    .ifPresent(floodgatePlayer -> {
-                        LinkedPlayer linkedPlayer = floodgatePlayer.getLinkedPlayer();
-                        SchedulerService.getInstance()
-                                .runAsync(() -> storeData(event, uuid, floodgatePlayer, linkedPlayer));
-                    });
-        } catch (LinkageError ignored) {
-            // Related to
-            // https://github.com/plan-player-analytics/Plan/issues/2004
-            // https://github.com/GeyserMC/Floodgate/issues/178
+            CapabilityService.getInstance().registerEnableListener(enabled -> {
+                if (!enabled) close();
+            });
+        } catch (NoSuchMethodError | NoClassDefFoundError oldPlanVersion) {
+            // Queued joins are lost on shutdown
         }
     }
 
-    private void storeData(PostLoginEvent event, UUID uuid, FloodgatePlayer floodgatePlayer, LinkedPlayer linkedPlayer) {
-        try {
-            storage.storePlayer(
-                    uuid,
-                    floodgatePlayer.getDeviceOs(),
-                    floodgatePlayer.getUsername(),
-                    floodgatePlayer.getJavaUsername(),
-                    linkedPlayer != null ? linkedPlayer.getJavaUsername() : null,
-                    floodgatePlayer.getLanguageCode(),
-                    floodgatePlayer.getVersion()
-            );
-            caller.updatePlayerData(uuid, event.getPlayer().getName());
-        } catch (ExecutionException ignored) {
-            // Ignore
-        }
+    @EventHandler(priority = EventPriority.NORMAL)
+    public void onLogin(PostLoginEvent event) {
+        onFloodgateJoin(event.getPlayer().getUniqueId(), event.getPlayer().getName());
     }
 }
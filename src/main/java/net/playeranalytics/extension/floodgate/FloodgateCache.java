@@ -0,0 +1,161 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Small read-through cache bounded by size (least recently used is evicted) and time to live.
+ *
+ * @param <K> Type of the key
+ * @param <V> Type of the cached value, should be immutable
+ */
+public class FloodgateCache<K, V> {
+
+    private final int maxSize;
+    private final long ttlMs;
+    private final Map<K, Entry<V>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    // Incremented on every invalidation so that loads racing with a write are not cached.
+    private long generation = 0;
+
+    public FloodgateCache(int maxSize, long ttlMs) {
+        this.maxSize = maxSize;
+        this.ttlMs = ttlMs;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > FloodgateCache.this.maxSize;
+            }
+        };
+    }
+
+    public V get(K key, Function<K, V> loader) {
+        long loadGeneration;
+        synchronized (this) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && !entry.isExpired(ttlMs)) {
+                hits.incrementAndGet();
+                return entry.value;
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+
+        // Loaded outside the lock so that one slow query does not block other readers.
+        V value = loader.apply(key);
+        if (value != null) {
+            synchronized (this) {
+                if (loadGeneration == generation) entries.put(key, new Entry<>(value));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return the cached value, or null if it is not cached or has expired
+     */
+    public synchronized V getIfPresent(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || entry.isExpired(ttlMs)) return null;
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Replace a cached value, without caching the key if it is not cached yet.
+     *
+     * @return the previous value, or null if it was not cached or had expired
+     */
+    public synchronized V replaceIfPresent(K key, V value) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || entry.isExpired(ttlMs)) return null;
+        generation++;
+        entries.put(key, new Entry<>(value));
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value));
+    }
+
+    /**
+     * @return Current generation, to be given to {@link #putIfNotInvalidated(Object, Object, long)}
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Cache a value that was loaded in bulk, unless something was invalidated after the load started.
+     *
+     * @param key            Key of the value
+     * @param value          Loaded value
+     * @param loadGeneration {@link #getGeneration()} before the value was loaded
+     */
+    public synchronized void putIfNotInvalidated(K key, V value, long loadGeneration) {
+        if (loadGeneration == generation) entries.put(key, new Entry<>(value));
+    }
+
+    public synchronized void invalidate(K key) {
+        generation++;
+        entries.remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long storedAt;
+
+        private Entry(V value) {
+            this.value = value;
+            this.storedAt = System.currentTimeMillis();
+        }
+
+        private boolean isExpired(long ttlMs) {
+            return System.currentTimeMillis() - storedAt > ttlMs;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import com.djrapitops.plan.query.QueryService;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks for rows of plan_platforms that other servers sharing the database have written, by their updated column.
+ * <p>
+ * Each poll reads the rows updated after the latest seen update, a page at a time, and gives them to
+ * {@link FloodgateStorage#applyChange(FloodgatePlayerData)}. The polls start a while before the latest seen update,
+ * so that rows of transactions that committed late are not missed.
+ */
+public class FloodgateChangePoller {
+
+    static final long OVERLAP_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private final QueryService queryService;
+    private final FloodgateStorage storage;
+    private final int pageSize;
+    private final String selectChanges;
+    private final String legacySelectChanges;
+
+    // Only used on the scheduler thread
+    private long watermark;
+
+    public FloodgateChangePoller(QueryService queryService, FloodgateStorage storage) {
+        this.queryService = queryService;
+        this.storage = storage;
+        this.pageSize = Math.max(1, FloodgateSettings.getSyncPageSize());
+        this.selectChanges = selectChanges(true);
+        this.legacySelectChanges = selectChanges(false);
+    }
+
+    private static String selectChanges(boolean dictionary) {
+        return FloodgateStorage.selectPlayers("p.updated", dictionary) +
+                " WHERE p.updated >= ? AND (p.updated > ? OR p.uuid > ?)" +
+                " ORDER BY p.updated, p.uuid LIMIT ?";
+    }
+
+    /**
+     * Start polling, unless disabled with plan.floodgate.sync.interval=0.
+     *
+     * @param scheduler Scheduler to poll on
+     */
+    public void start(ScheduledExecutorService scheduler) {
+        long interval = FloodgateSettings.getSyncInterval();
+        if (interval <= 0) return;
+        // Rows that existed before startup are loaded on demand
+        Long latest = queryService.query("SELECT MAX(updated) FROM plan_platforms", statement -> {
+            try (ResultSet set = statement.executeQuery()) {
+                return set.next() ? set.getLong(1) : 0L;
+            }
+        });
+        watermark = latest != null ? latest : 0L;
+        scheduler.scheduleWithFixedDelay(this::poll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        FloodgateCircuitBreaker breaker = storage.getCircuitBreaker();
+        if (!breaker.allowRequest()) return;
+        long start = System.nanoTime();
+        try {
+            pollPages();
+            breaker.onSuccess(start);
+        } catch (RuntimeException e) {
+            // Tried again on the next poll, an exception would cancel the polling
+            breaker.onFailure();
+        }
+    }
+
+    private void pollPages() {
+        String sql = storage.isDictionaryAvailable() ? selectChanges : legacySelectChanges;
+        long afterUpdated = watermark - OVERLAP_MS;
+        String afterUUID = "";
+        List<FloodgatePlayerData> page = new ArrayList<>(pageSize);
+        long[] lastUpdated = new long[1];
+        while (true) {
+            long pageUpdated = afterUpdated;
+            String pageUUID = afterUUID;
+            page.clear();
+            queryService.query(sql, statement -> {
+                statement.setLong(1, pageUpdated);
+                statement.setLong(2, pageUpdated);
+                statement.setString(3, pageUUID);
+                statement.setInt(4, pageSize);
+                try (ResultSet set = statement.executeQuery()) {
+                    while (set.next()) {
+                        page.add(FloodgateStorage.readRow(UUID.fromString(set.getString(1)), set, 2));
+                        lastUpdated[0] = set.getLong(8);
+                    }
+                }
+                return null;
+            });
+            for (FloodgatePlayerData row : page) {
+                storage.applyChange(row);
+            }
+            if (page.isEmpty()) return;
+            afterUpdated = lastUpdated[0];
+            afterUUID = page.get(page.size() - 1).getPlayerUUID().toString();
+            watermark = Math.max(watermark, afterUpdated);
+            if (page.size() < pageSize) return;
+        }
+    }
+}
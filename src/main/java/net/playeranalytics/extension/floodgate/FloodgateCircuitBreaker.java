@@ -0,0 +1,174 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops the extension from queueing more database work while the Plan database is failing or slow.
+ * <p>
+ * The outcomes of the latest calls are kept in a window. When too many of them failed or took longer than the
+ * slow call threshold, the breaker opens and calls are refused for a while. After that one trial call is let
+ * through, and its outcome decides whether the breaker closes again.
+ */
+public class FloodgateCircuitBreaker {
+
+    public enum State {
+        CLOSED("Closed"),
+        OPEN("Open"),
+        HALF_OPEN("Half open");
+
+        private final String name;
+
+        State(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final int failureRate;
+    private final boolean[] window;
+
+    // Guarded by this
+    private State state = State.CLOSED;
+    private long stateChangedAt = System.nanoTime();
+    private int position = 0;
+    private int calls = 0;
+    private int badCalls = 0;
+    private long timesOpened = 0;
+
+    public FloodgateCircuitBreaker(long slowCallMs, long openMs, int failureRate, int windowSize) {
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMs);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+        this.failureRate = Math.max(1, Math.min(100, failureRate));
+        this.window = new boolean[Math.max(1, windowSize)];
+    }
+
+    /**
+     * Check if a database call may be made. Every allowed call has to be followed by
+     * {@link #onSuccess(long)} or {@link #onFailure()}.
+     *
+     * @return false if the call should be skipped
+     */
+    public synchronized boolean allowRequest() {
+        long now = System.nanoTime();
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - stateChangedAt < openNanos) return false;
+                changeState(State.HALF_OPEN, now);
+                return true;
+            case HALF_OPEN:
+            default:
+                // A trial whose outcome was never reported does not keep the breaker half open forever
+                if (now - stateChangedAt < openNanos) return false;
+                stateChangedAt = now;
+                return true;
+        }
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} when the call started
+     */
+    public synchronized void onSuccess(long startNanos) {
+        boolean slow = System.nanoTime() - startNanos > slowCallNanos;
+        if (state == State.HALF_OPEN) {
+            if (slow) {
+                open();
+            } else {
+                changeState(State.CLOSED, System.nanoTime());
+            }
+            return;
+        }
+        recordOutcome(slow);
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        recordOutcome(true);
+    }
+
+    private void recordOutcome(boolean bad) {
+        if (state != State.CLOSED) return; // Calls that were allowed before the breaker opened
+        if (calls == window.length) {
+            if (window[position]) badCalls--;
+        } else {
+            calls++;
+        }
+        window[position] = bad;
+        if (bad) badCalls++;
+        position = (position + 1) % window.length;
+
+        if (calls == window.length && badCalls * 100 >= failureRate * calls) open();
+    }
+
+    private void open() {
+        timesOpened++;
+        changeState(State.OPEN, System.nanoTime());
+    }
+
+    private void changeState(State to, long now) {
+        state = to;
+        stateChangedAt = now;
+        Arrays.fill(window, false);
+        position = 0;
+        calls = 0;
+        badCalls = 0;
+    }
+
+    /**
+     * @return true if database calls are currently being refused or tried out
+     */
+    public synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return How many times the breaker has opened
+     */
+    public synchronized long getTimesOpened() {
+        return timesOpened;
+    }
+
+    /**
+     * @return Duration after which a call counts as slow, in nanoseconds
+     */
+    public long getSlowCallNanos() {
+        return slowCallNanos;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import com.djrapitops.plan.query.QueryService;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Dictionary of the low-cardinality values of plan_platforms (client version, language code).
+ * <p>
+ * The values are stored once in plan_platform_versions and plan_platform_languages, rows refer to them by
+ * versionId and languageId. Rows keep their own version and languageCode as well, so that servers with an older
+ * version of the extension that share the database, and downgrades, keep reading them. Emptying those is left to a
+ * later, versioned cleanup. A row that has its own value is read with it, the ids of rows that older versions
+ * updated can be out of date.
+ * <p>
+ * In memory one instance of each value is shared between cached rows and counts, see {@link #intern(String)}.
+ */
+public final class FloodgateDictionary {
+
+    // Plenty for versions and language codes, guards against unexpected free-text values.
+    private static final int MAX_SIZE = 4096;
+    private static final Map<String, String> VALUES = new ConcurrentHashMap<>();
+
+    private static final String LEGACY_TABLES = "plan_platforms p";
+    private static final String TABLES = "plan_platforms p" +
+            " LEFT JOIN plan_platform_languages l ON l.id = p.languageId" +
+            " LEFT JOIN plan_platform_versions v ON v.id = p.versionId";
+    private static final String LANGUAGE_CODE = "COALESCE(NULLIF(p.languageCode, ''), l.languageCode, '')";
+    private static final String VERSION = "COALESCE(NULLIF(p.version, ''), v.version, '')";
+
+    private final QueryService queryService;
+    private final boolean sqlite;
+    private final Column languages = new Column("plan_platform_languages", "languageCode");
+    private final Column versions = new Column("plan_platform_versions", "version");
+    // Set once the id columns exist, until then the rows are read as they are
+    private volatile boolean available = false;
+
+    public FloodgateDictionary(QueryService queryService, boolean sqlite) {
+        this.queryService = queryService;
+        this.sqlite = sqlite;
+    }
+
+    public static String intern(String value) {
+        if (value == null) return null;
+        String existing = VALUES.get(value);
+        if (existing != null) return existing;
+        if (VALUES.size() >= MAX_SIZE) return value;
+        existing = VALUES.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+
+    List<Future<?>> createTables() {
+        return Arrays.asList(createTable(languages, 8), createTable(versions, 16));
+    }
+
+    private Future<?> createTable(Column column, int length) {
+        return queryService.execute(createTableSql(column.table, column.name, length, sqlite), PreparedStatement::execute);
+    }
+
+    static String createTableSql(String table, String column, int length, boolean sqlite) {
+        return "CREATE TABLE IF NOT EXISTS " + table + " (" +
+                "id " + (sqlite ? "integer PRIMARY KEY" : "int NOT NULL AUTO_INCREMENT") + ',' +
+                column + " VARCHAR(" + length + ") NOT NULL UNIQUE" +
+                (sqlite ? "" : ",PRIMARY KEY (id)") +
+                ")";
+    }
+
+    void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    /**
+     * @return true once the rows have id columns, pick the SQL built by the static methods with this
+     */
+    boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * @return FROM clause of plan_platforms as p, with the dictionary tables joined
+     */
+    String tables() {
+        return tables(available);
+    }
+
+    /**
+     * @return Expression of the language code of a row of {@link #tables()}
+     */
+    String languageCode() {
+        return languageCode(available);
+    }
+
+    /**
+     * @return Expression of the client version of a row of {@link #tables()}
+     */
+    String version() {
+        return version(available);
+    }
+
+    static String tables(boolean available) {
+        return available ? TABLES : LEGACY_TABLES;
+    }
+
+    static String languageCode(boolean available) {
+        return available ? LANGUAGE_CODE : "p.languageCode";
+    }
+
+    static String version(boolean available) {
+        return available ? VERSION : "p.version";
+    }
+
+    /**
+     * @return Ids for the rows of one transaction
+     */
+    Ids newIds() {
+        return new Ids();
+    }
+
+    /**
+     * Ids of the values written in one transaction.
+     * <p>
+     * Values that the transaction adds to the dictionary are only remembered after it has committed, a rolled back
+     * id must not be used by later writes.
+     */
+    final class Ids {
+
+        private final Map<String, Integer> addedLanguages = new HashMap<>();
+        private final Map<String, Integer> addedVersions = new HashMap<>();
+
+        private Ids() {
+        }
+
+        int languageId(Connection connection, String languageCode) throws SQLException {
+            return languages.getId(connection, languageCode, addedLanguages);
+        }
+
+        int versionId(Connection connection, String version) throws SQLException {
+            return versions.getId(connection, version, addedVersions);
+        }
+
+        /**
+         * Remember the values added by the transaction, call after it committed.
+         */
+        void committed() {
+            languages.remember(addedLanguages);
+            versions.remember(addedVersions);
+        }
+    }
+
+    private final class Column {
+
+        private final String table;
+        private final String name;
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+        private Column(String table, String name) {
+            this.table = table;
+            this.name = name;
+        }
+
+        /**
+         * @return id of the value, or 0 if the row keeps the value itself
+         */
+        private int getId(Connection connection, String value, Map<String, Integer> added) throws SQLException {
+            if (value == null || value.isEmpty()) return 0;
+            Integer id = ids.get(value);
+            if (id == null) id = added.get(value);
+            if (id != null) return id;
+
+            id = selectId(connection, value);
+            if (id != null) {
+                // Committed by another transaction
+                if (ids.size() < MAX_SIZE) ids.put(value, id);
+                return id;
+            }
+            try (PreparedStatement insert = connection.prepareStatement(
+                    (sqlite ? "INSERT OR IGNORE INTO " : "INSERT IGNORE INTO ") + table + " (" + name + ") VALUES (?)")) {
+                insert.setString(1, value);
+                insert.execute();
+            }
+            id = selectId(connection, value);
+            if (id == null) return 0;
+            added.put(value, id);
+            return id;
+        }
+
+        private Integer selectId(Connection connection, String value) throws SQLException {
+            try (PreparedStatement select = connection.prepareStatement(
+                    "SELECT id FROM " + table + " WHERE " + name + "=?")) {
+                select.setString(1, value);
+                try (ResultSet set = select.executeQuery()) {
+                    return set.next() ? set.getInt(1) : null;
+                }
+            }
+        }
+
+        private void remember(Map<String, Integer> added) {
+            for (Map.Entry<String, Integer> entry : added.entrySet()) {
+                if (ids.size() >= MAX_SIZE) return;
+                ids.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import com.djrapitops.plan.query.QueryService;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adds the version and language code of existing plan_platforms rows to the {@link FloodgateDictionary} tables and
+ * fills in the ids of the rows.
+ * <p>
+ * The rows keep their own values, nothing is lost if servers with an older version of the extension share the
+ * database or the extension is downgraded. Only rows without ids are updated, a range of row ids per transaction
+ * with a pause in between, so the table stays usable while it runs. Rows that servers with an older version of the
+ * extension add later get their ids on the next start.
+ */
+public class FloodgateDictionaryMigration {
+
+    private static final Logger LOGGER = Logger.getLogger(FloodgateDictionaryMigration.class.getName());
+    private static final String WITHOUT_IDS = "languageId = 0 AND languageCode <> '' OR versionId = 0 AND version <> ''";
+
+    private final QueryService queryService;
+    private final String rowId;
+    private final String insertIgnore;
+    private final int chunkSize;
+    private final long pauseMs;
+
+    // Only used on the scheduler thread
+    private long filled;
+
+    public FloodgateDictionaryMigration(QueryService queryService, boolean sqlite) {
+        this.queryService = queryService;
+        this.rowId = sqlite ? "rowid" : "id";
+        this.insertIgnore = sqlite ? "INSERT OR IGNORE INTO " : "INSERT IGNORE INTO ";
+        this.chunkSize = Math.max(1, FloodgateSettings.getDictionaryMigrationChunkSize());
+        this.pauseMs = Math.max(0L, FloodgateSettings.getDictionaryMigrationPause());
+    }
+
+    /**
+     * Start filling in the ids of the rows that exist now.
+     *
+     * @param scheduler Scheduler to run the transactions from
+     */
+    public void start(ScheduledExecutorService scheduler) {
+        long[] range;
+        try {
+            range = queryService.query("SELECT MIN(" + rowId + "), MAX(" + rowId + ") FROM plan_platforms " +
+                    "WHERE " + WITHOUT_IDS, statement -> {
+                try (ResultSet set = statement.executeQuery()) {
+                    if (!set.next() || set.getObject(1) == null) return null;
+                    return new long[]{set.getLong(1), set.getLong(2)};
+                }
+            });
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Floodgate extension: looking for rows without dictionary ids failed", e);
+            return;
+        }
+        if (range == null) return; // Nothing to fill in
+        fillChunk(scheduler, range[0] - 1, range[1]);
+    }
+
+    private void fillChunk(ScheduledExecutorService scheduler, long after, long last) {
+        long upTo = Math.min(last, after + chunkSize);
+        int[] rows = new int[1];
+        try {
+            queryService.execute("UPDATE plan_platforms SET " +
+                    "languageId = CASE WHEN languageId = 0 AND languageCode <> '' THEN " +
+                    "(SELECT l.id FROM plan_platform_languages l WHERE l.languageCode = plan_platforms.languageCode) " +
+                    "ELSE languageId END, " +
+                    "versionId = CASE WHEN versionId = 0 AND version <> '' THEN " +
+                    "(SELECT v.id FROM plan_platform_versions v WHERE v.version = plan_platforms.version) " +
+                    "ELSE versionId END " +
+                    "WHERE " + rowId + " > ? AND " + rowId + " <= ? AND (" + WITHOUT_IDS + ")", statement -> {
+                Connection connection = statement.getConnection();
+                addValues(connection, "plan_platform_languages", "languageCode", after, upTo);
+                addValues(connection, "plan_platform_versions", "version", after, upTo);
+                statement.setLong(1, after);
+                statement.setLong(2, upTo);
+                rows[0] = statement.executeUpdate();
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException | RuntimeException e) {
+            // The rest of the rows get their ids on the next start
+            LOGGER.log(Level.WARNING, "Floodgate extension: filling in the dictionary ids of rows failed", e);
+            return;
+        }
+        filled += rows[0];
+        if (upTo >= last) {
+            if (filled > 0) {
+                LOGGER.info("Floodgate extension: filled in the dictionary ids of " + filled + " rows");
+            }
+            return;
+        }
+        try {
+            scheduler.schedule(() -> fillChunk(scheduler, upTo, last), pauseMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException closed) {
+            // Continued on the next start
+        }
+    }
+
+    private void addValues(Connection connection, String table, String column, long after, long upTo) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(insertIgnore + table + " (" + column + ") " +
+                "SELECT DISTINCT " + column + " FROM plan_platforms " +
+                "WHERE " + rowId + " > ? AND " + rowId + " <= ? AND " + column + " <> ''")) {
+            statement.setLong(1, after);
+            statement.setLong(2, upTo);
+            statement.execute();
+        }
+    }
+}
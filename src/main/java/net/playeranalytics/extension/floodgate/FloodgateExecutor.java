@@ -0,0 +1,168 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import com.djrapitops.plan.settings.SchedulerService;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the blocking database work of joins, on Plan's async pool or on a pool of the extension's own.
+ * <p>
+ * With -Dplan.floodgate.executor.dedicated=true the work runs on virtual threads when the Java version has them
+ * (21+), otherwise on a small pool of platform threads. Either way at most executor.concurrency tasks run at once,
+ * which should match the connection pool size of the Plan database, and at most executor.queue-capacity wait for
+ * their turn. Tasks beyond that are shed: they are rejected and counted, instead of being moved to Plan's pool
+ * where they would compete with the rest of Plan again.
+ */
+public class FloodgateExecutor implements Executor {
+
+    private final Executor planAsync;
+    private final ExecutorService dedicated;
+    private final Semaphore permits;
+    private final String description;
+    private final FloodgateMetrics metrics;
+    // Tasks given to the own threads that have not finished yet, running or waiting
+    private final AtomicInteger pending = new AtomicInteger();
+    private final int maxPending;
+
+    /**
+     * @param metrics   Metrics that shed tasks are counted in
+     * @param planAsync Plan's async pool, see {@link #planAsyncPool()}, used unless the own threads are enabled
+     */
+    public FloodgateExecutor(FloodgateMetrics metrics, Executor planAsync) {
+        this.metrics = metrics;
+        this.planAsync = planAsync;
+        if (!FloodgateSettings.isDedicatedExecutor()) {
+            dedicated = null;
+            permits = null;
+            maxPending = 0;
+            description = "Plan async pool";
+            return;
+        }
+        int concurrency = Math.max(1, FloodgateSettings.getExecutorConcurrency());
+        int queueCapacity = Math.max(1, FloodgateSettings.getExecutorQueueCapacity());
+        permits = new Semaphore(concurrency);
+        maxPending = concurrency + queueCapacity;
+        ExecutorService virtualThreads = createVirtualThreadExecutor();
+        if (virtualThreads != null) {
+            dedicated = virtualThreads;
+            description = "Virtual threads (" + concurrency + " at once)";
+        } else {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(concurrency, concurrency,
+                    60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "Plan Floodgate Extension Worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            dedicated = pool;
+            description = "Platform threads (" + concurrency + ")";
+        }
+    }
+
+    /**
+     * @return Executor that runs tasks with Plan's {@link SchedulerService}
+     */
+    public static Executor planAsyncPool() {
+        return task -> SchedulerService.getInstance().runAsync(task);
+    }
+
+    private static ExecutorService createVirtualThreadExecutor() {
+        // Looked up reflectively so that the jar still targets Java 8
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException notAvailable) {
+            return null;
+        }
+    }
+
+    /**
+     * Run the task on the threads of the extension or on Plan's pool.
+     *
+     * @param task Task to run
+     * @throws RejectedExecutionException If the own threads are busy with executor.queue-capacity tasks waiting,
+     *                                    or shut down
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (dedicated == null) {
+            planAsync.execute(task);
+            return;
+        }
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            metrics.shedTask();
+            throw new RejectedExecutionException("Floodgate extension threads are busy");
+        }
+        try {
+            dedicated.execute(() -> runLimited(task));
+        } catch (RejectedExecutionException shutDown) {
+            pending.decrementAndGet();
+            throw shutDown;
+        }
+    }
+
+    private void runLimited(Runnable task) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            pending.decrementAndGet();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            task.run();
+        } finally {
+            permits.release();
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return Which threads run the work, shown with the extension timings
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Stop the own pool after the tasks that were already given to it.
+     */
+    public void shutdown() {
+        if (dedicated != null) dedicated.shutdown();
+    }
+}
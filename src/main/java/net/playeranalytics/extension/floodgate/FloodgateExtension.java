@@ -27,13 +27,22 @@ import com.djrapitops.plan.extension.CallEvents;
 import com.djrapitops.plan.extension.DataExtension;
 import com.djrapitops.plan.extension.annotation.BooleanProvider;
 import com.djrapitops.plan.extension.annotation.Conditional;
+import com.djrapitops.plan.extension.annotation.NumberProvider;
+import com.djrapitops.plan.extension.annotation.PercentageProvider;
 import com.djrapitops.plan.extension.annotation.PluginInfo;
 import com.djrapitops.plan.extension.annotation.StringProvider;
+import com.djrapitops.plan.extension.annotation.TableProvider;
 import com.djrapitops.plan.extension.icon.Color;
 import com.djrapitops.plan.extension.icon.Family;
+import com.djrapitops.plan.extension.icon.Icon;
+import com.djrapitops.plan.extension.table.Table;
 import org.geysermc.floodgate.api.FloodgateApi;
 import org.geysermc.floodgate.util.DeviceOs;
 
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -52,11 +61,11 @@ public class FloodgateExtension implements DataExtension {
 
     @Override
     public CallEvents[] callExtensionMethodsOn() {
-        return new CallEvents[0];
+        return new CallEvents[]{CallEvents.SERVER_PERIODICAL};
     }
 
     private boolean isDataAvailable(UUID playerUUID) {
-        return storage.getBedrockUsername(playerUUID) != null;
+        return storage.hasPlayer(playerUUID);
     }
 
     // Conditionals
@@ -93,7 +102,8 @@ public class FloodgateExtension implements DataExtension {
             iconFamily = Family.SOLID
     )
     public boolean bedrock(UUID playerUUID) {
-        return isDataAvailable(playerUUID) || FloodgateApi.getInstance().isFloodgateId(playerUUID);
+        // isFloodgateId only looks at the UUID, so it is checked before the stored data
+        return FloodgateApi.getInstance().isFloodgateId(playerUUID) || isDataAvailable(playerUUID);
     }
 
     @StringProvider(
@@ -177,4 +187,175 @@ public class FloodgateExtension implements DataExtension {
         return storage.getVersion(playerUUID);
     }
 
+    // Server data
+
+    @NumberProvider(
+            text = "Bedrock players",
+            description = "Amount of players that have joined using Bedrock",
+            priority = 100,
+            iconName = "gamepad",
+            iconColor = Color.AMBER,
+            iconFamily = Family.SOLID
+    )
+    public long bedrockPlayers() {
+        return storage.getAggregates().getPlayers();
+    }
+
+    @NumberProvider(
+            text = "Linked Bedrock players",
+            description = "Amount of Bedrock players that have linked a Java account",
+            priority = 90,
+            iconName = "link",
+            iconColor = Color.AMBER,
+            iconFamily = Family.SOLID
+    )
+    public long linkedBedrockPlayers() {
+        return storage.getAggregates().getLinkedPlayers();
+    }
+
+    @PercentageProvider(
+            text = "Linked accounts",
+            description = "Percentage of Bedrock players that have linked a Java account",
+            priority = 80,
+            iconName = "link",
+            iconColor = Color.AMBER,
+            iconFamily = Family.SOLID
+    )
+    public double linkedRatio() {
+        FloodgateAggregates aggregates = storage.getAggregates();
+        long players = aggregates.getPlayers();
+        return players > 0 ? (double) aggregates.getLinkedPlayers() / players : 0.0;
+    }
+
+    @TableProvider(tableColor = Color.AMBER)
+    public Table devices() {
+        Table.Factory table = Table.builder()
+                .columnOne("Device", Icon.called("mobile-alt").of(Family.REGULAR).build())
+                .columnTwo("Players", Icon.called("users").build());
+        for (Map.Entry<DeviceOs, Long> device : storage.getAggregates().getDevices()) {
+            table.addRow(device.getKey().toString(), device.getValue());
+        }
+        return table.build();
+    }
+
+    @TableProvider(tableColor = Color.AMBER)
+    public Table versions() {
+        Table.Factory table = Table.builder()
+                .columnOne("Version", Icon.called("signal").build())
+                .columnTwo("Players", Icon.called("users").build());
+        List<Map.Entry<String, Long>> versions = storage.getAggregates().getVersions();
+        for (Map.Entry<String, Long> version : versions.subList(0, Math.min(10, versions.size()))) {
+            table.addRow(version.getKey(), version.getValue());
+        }
+        return table.build();
+    }
+
+    @TableProvider(tableColor = Color.AMBER)
+    public Table languages() {
+        Table.Factory table = Table.builder()
+                .columnOne("Language code", Icon.called("flag").of(Family.REGULAR).build())
+                .columnTwo("Players", Icon.called("users").build())
+                .columnThree("Share of Bedrock players", Icon.called("percent").build());
+        addShareRows(table, storage.getLocales().getLanguages());
+        return table.build();
+    }
+
+    @TableProvider(tableColor = Color.AMBER)
+    public Table regions() {
+        Table.Factory table = Table.builder()
+                .columnOne("Region", Icon.called("globe-europe").build())
+                .columnTwo("Players", Icon.called("users").build())
+                .columnThree("Share of Bedrock players", Icon.called("percent").build());
+        addShareRows(table, storage.getLocales().getRegions());
+        return table.build();
+    }
+
+    private void addShareRows(Table.Factory table, List<Map.Entry<String, Long>> counts) {
+        long total = 0;
+        for (Map.Entry<String, Long> count : counts) {
+            total += count.getValue();
+        }
+        for (Map.Entry<String, Long> count : counts) {
+            table.addRow(count.getKey(), count.getValue(),
+                    String.format(Locale.ROOT, "%.1f%%", 100.0 * count.getValue() / total));
+        }
+    }
+
+    @TableProvider(tableColor = Color.AMBER)
+    public Table joinsPerDay() {
+        Table.Factory table = Table.builder()
+                .columnOne("Day", Icon.called("calendar").of(Family.REGULAR).build())
+                .columnTwo("Bedrock joins", Icon.called("sign-in-alt").build());
+        for (Map.Entry<LocalDate, Long> day : storage.getJoinLog().getJoinsPerDay(14).entrySet()) {
+            table.addRow(day.getKey().toString(), day.getValue());
+        }
+        return table.build();
+    }
+
+    @TableProvider(tableColor = Color.AMBER)
+    public Table deviceTrend() {
+        Table.Factory table = Table.builder()
+                .columnOne("Device", Icon.called("mobile-alt").of(Family.REGULAR).build())
+                .columnTwo("Joins, last 7 days", Icon.called("sign-in-alt").build())
+                .columnThree("Joins, 7 days before", Icon.called("sign-in-alt").build());
+        for (Map.Entry<DeviceOs, long[]> device : storage.getJoinLog().getDeviceTrend(7).entrySet()) {
+            table.addRow(device.getKey().toString(), device.getValue()[0], device.getValue()[1]);
+        }
+        return table.build();
+    }
+
+    // Extension performance
+
+    @BooleanProvider(
+            text = "Show extension timings",
+            conditionName = "show-metrics",
+            hidden = true
+    )
+    public boolean showMetrics() {
+        return FloodgateSettings.isMetricsShown();
+    }
+
+    @NumberProvider(
+            text = "Queued joins",
+            description = "Amount of Bedrock joins waiting to be written to the database",
+            priority = 10,
+            iconName = "hourglass-half",
+            iconColor = Color.AMBER,
+            iconFamily = Family.SOLID
+    )
+    @Conditional("show-metrics")
+    public long queuedJoins() {
+        return storage.getMetrics().getQueueSize();
+    }
+
+    @TableProvider(tableColor = Color.AMBER)
+    @Conditional("show-metrics")
+    public Table extensionTimings() {
+        FloodgateMetrics metrics = storage.getMetrics();
+        Table.Factory table = Table.builder()
+                .columnOne("Operation", Icon.called("database").build())
+                .columnTwo("Calls", Icon.called("hashtag").build())
+                .columnThree("Median (ms)", Icon.called("stopwatch").build())
+                .columnFour("99th percentile (ms)", Icon.called("stopwatch").build())
+                .columnFive("Average (ms)", Icon.called("stopwatch").build());
+        for (FloodgateMetrics.Operation operation : FloodgateMetrics.Operation.values()) {
+            FloodgateMetrics.Histogram histogram = metrics.getHistogram(operation);
+            table.addRow(operation.getName(), histogram.getCount(),
+                    histogram.getPercentileMs(0.5), histogram.getPercentileMs(0.99), histogram.getAverageMs());
+        }
+        table.addRow("Cache hits / misses", storage.getCacheHits() + " / " + storage.getCacheMisses(), "-", "-", "-");
+        table.addRow("Joins written / skipped", metrics.getWrittenJoins() + " / " + metrics.getSkippedJoins(), "-", "-", "-");
+        table.addRow("Joins written by another node", metrics.getJoinsWrittenElsewhere(), "-", "-", "-");
+        FloodgateCircuitBreaker breaker = storage.getCircuitBreaker();
+        table.addRow("Circuit breaker (times opened)", breaker.getState().getName() + " (" + breaker.getTimesOpened() + ")", "-", "-", "-");
+        table.addRow("Joins dropped while database was slow", metrics.getShedJoins(), "-", "-", "-");
+        table.addRow("Joins dropped after failed writes", metrics.getFailedJoins(), "-", "-", "-");
+        table.addRow("Player updates requested / run", metrics.getRequestedRefreshes() + " / " + metrics.getRanRefreshes(), "-", "-", "-");
+        table.addRow("Rejoins held back / stored after window", metrics.getThrottledJoins() + " / " + metrics.getReleasedJoins(), "-", "-", "-");
+        table.addRow("Online players corrected", metrics.getReconciledPlayers(), "-", "-", "-");
+        table.addRow("Join threads", storage.getExecutor().getDescription(), "-", "-", "-");
+        table.addRow("Tasks dropped while join threads were busy", metrics.getShedTasks(), "-", "-", "-");
+        return table.build();
+    }
+
 }
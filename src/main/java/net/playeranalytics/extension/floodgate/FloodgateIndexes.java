@@ -0,0 +1,204 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import com.djrapitops.plan.query.QueryService;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Adds missing columns and named indexes to the extension's tables and checks that the hot lookups use an index.
+ */
+public class FloodgateIndexes {
+
+    private static final Logger LOGGER = Logger.getLogger(FloodgateIndexes.class.getName());
+
+    private final QueryService queryService;
+    private final boolean sqlite;
+
+    public FloodgateIndexes(QueryService queryService, boolean sqlite) {
+        this.queryService = queryService;
+        this.sqlite = sqlite;
+    }
+
+    /**
+     * Add the columns that tables created by older versions of the extension do not have.
+     *
+     * @return true if all columns exist afterwards
+     */
+    public boolean addMissingColumns() {
+        return addColumnIfMissing("plan_platforms", "updated", "bigint NOT NULL DEFAULT 0");
+    }
+
+    /**
+     * Add the columns that refer to {@link FloodgateDictionary} values, which tables created by older versions of
+     * the extension do not have.
+     *
+     * @return true if the columns exist afterwards
+     */
+    public boolean addDictionaryColumns() {
+        boolean languageId = addColumnIfMissing("plan_platforms", "languageId", "int NOT NULL DEFAULT 0");
+        return addColumnIfMissing("plan_platforms", "versionId", "int NOT NULL DEFAULT 0") && languageId;
+    }
+
+    private boolean addColumnIfMissing(String table, String column, String definition) {
+        // The statement is only used for its connection.
+        Boolean exists = queryService.query("SELECT 1", statement -> {
+            Connection connection = statement.getConnection();
+            DatabaseMetaData metaData = connection.getMetaData();
+            boolean upperCase = metaData.storesUpperCaseIdentifiers();
+            String tableName = upperCase ? table.toUpperCase(Locale.ROOT) : table;
+            String columnName = upperCase ? column.toUpperCase(Locale.ROOT) : column;
+            try (ResultSet set = metaData.getColumns(connection.getCatalog(), null, tableName, columnName)) {
+                return set.next();
+            }
+        });
+        if (Boolean.TRUE.equals(exists)) return true;
+        try {
+            queryService.execute("ALTER TABLE " + table + " ADD COLUMN " + column + ' ' + definition,
+                    PreparedStatement::execute).get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Add the indexes that are missing. The unique columns of plan_platforms (uuid, bedrockUsername) are indexed by
+     * their constraints already.
+     */
+    public void createMissingIndexes() {
+        createIndexIfMissing("plan_platform_joins", "plan_platform_joins_day_index", "day");
+        createIndexIfMissing("plan_platform_joins", "plan_platform_joins_uuid_index", "uuid");
+        createIndexIfMissing("plan_platforms", "plan_platforms_updated_index", "updated");
+    }
+
+    private void createIndexIfMissing(String table, String index, String columns) {
+        // MySQL has no CREATE INDEX IF NOT EXISTS, so the index is looked up from the metadata first.
+        // The statement is only used for its connection.
+        Boolean exists = queryService.query("SELECT 1", statement -> {
+            Connection connection = statement.getConnection();
+            DatabaseMetaData metaData = connection.getMetaData();
+            String tableName = metaData.storesUpperCaseIdentifiers() ? table.toUpperCase(Locale.ROOT) : table;
+            try (ResultSet set = metaData.getIndexInfo(connection.getCatalog(), null, tableName, false, true)) {
+                while (set.next()) {
+                    if (index.equalsIgnoreCase(set.getString("INDEX_NAME"))) return true;
+                }
+                return false;
+            }
+        });
+        if (Boolean.FALSE.equals(exists)) {
+            try {
+                // Waited for, so that the query plans are checked with the index in place
+                queryService.execute("CREATE INDEX " + index + " ON " + table + " (" + columns + ")",
+                        PreparedStatement::execute).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ignored) {
+                // Reported by the query plan check
+            }
+        }
+    }
+
+    /**
+     * Look at the query plans of the hot lookups and writes and log a warning for each that scans the whole table.
+     *
+     * @param writeStatements Statements that rows are written with
+     */
+    public void checkQueryPlans(FloodgateUpsert writeStatements) {
+        String uuid = new UUID(0L, 0L).toString();
+        checkQueryPlan("player lookup", "SELECT platform FROM plan_platforms WHERE uuid=?", uuid);
+        // Used when the database has no upsert for both unique columns
+        checkQueryPlan("player update", writeStatements.getUpdateSql(), uuid);
+        checkQueryPlan("player update by bedrockUsername", writeStatements.getUpdateByNameSql(), "");
+        checkQueryPlan("join history removal", "SELECT joined FROM plan_platform_joins WHERE uuid=?", uuid);
+        checkQueryPlan("join history rollup", "SELECT joined FROM plan_platform_joins WHERE day < ?", 0L);
+        checkQueryPlan("change poll", "SELECT uuid FROM plan_platforms WHERE updated > ?", getRecentUpdated());
+    }
+
+    private long getRecentUpdated() {
+        // With "updated > 0" every row matches and MySQL prefers a scan, the polls only read recent rows
+        try {
+            Long now = queryService.query("SELECT " + FloodgateUpsert.currentTimeMillis(sqlite), statement -> {
+                try (ResultSet set = statement.executeQuery()) {
+                    return set.next() ? set.getLong(1) : null;
+                }
+            });
+            if (now != null) return now - FloodgateChangePoller.OVERLAP_MS;
+        } catch (RuntimeException ignored) {
+            // Checked with the local clock instead
+        }
+        return System.currentTimeMillis() - FloodgateChangePoller.OVERLAP_MS;
+    }
+
+    /**
+     * @param parameter Value of the last parameter of the query, the ones before it are null
+     */
+    private void checkQueryPlan(String name, String query, Object parameter) {
+        String explain = (sqlite ? "EXPLAIN QUERY PLAN " : "EXPLAIN ") + query;
+        try {
+            Boolean scans = queryService.query(explain, statement -> {
+                int parameters = statement.getParameterMetaData().getParameterCount();
+                for (int i = 1; i < parameters; i++) {
+                    statement.setNull(i, Types.NULL);
+                }
+                statement.setObject(parameters, parameter);
+                try (ResultSet set = statement.executeQuery()) {
+                    while (set.next()) {
+                        if (isTableScan(set)) return true;
+                    }
+                    return false;
+                }
+            });
+            if (Boolean.TRUE.equals(scans)) {
+                LOGGER.warning("Floodgate extension: the " + name + " query scans the whole table, " +
+                        "check that the indexes of the table exist: " + query);
+            }
+        } catch (RuntimeException e) {
+            // The check is advisory only, the database may not support EXPLAIN for this query
+        }
+    }
+
+    private boolean isTableScan(ResultSet set) throws SQLException {
+        if (sqlite) {
+            // "SCAN table" without "USING INDEX", indexed lookups are "SEARCH table USING INDEX ..."
+            String detail = set.getString("detail");
+            return detail != null && detail.startsWith("SCAN") && !detail.contains("INDEX");
+        } else {
+            return "ALL".equalsIgnoreCase(set.getString("type"));
+        }
+    }
+}
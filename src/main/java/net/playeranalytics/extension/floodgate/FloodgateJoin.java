@@ -0,0 +1,57 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+/**
+ * Immutable snapshot of a Bedrock player's join, copied on the event thread.
+ */
+public final class FloodgateJoin {
+
+    private final FloodgatePlayerData data;
+    private final String playerName;
+    private final long joinedAt;
+
+    /**
+     * @param data       Data of the joined player
+     * @param playerName Name of the player, given to {@link com.djrapitops.plan.extension.Caller#updatePlayerData}
+     * @param joinedAt   {@link System#nanoTime()} of the join event
+     */
+    public FloodgateJoin(FloodgatePlayerData data, String playerName, long joinedAt) {
+        this.data = data;
+        this.playerName = playerName;
+        this.joinedAt = joinedAt;
+    }
+
+    public FloodgatePlayerData getData() {
+        return data;
+    }
+
+    public String getPlayerName() {
+        return playerName;
+    }
+
+    public long getJoinedAt() {
+        return joinedAt;
+    }
+}
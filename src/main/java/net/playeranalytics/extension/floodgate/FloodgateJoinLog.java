@@ -0,0 +1,283 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import com.djrapitops.plan.query.QueryService;
+import org.geysermc.floodgate.util.DeviceOs;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only history of Bedrock joins (plan_platform_joins) and its daily rollup (plan_platform_join_days).
+ * <p>
+ * Joins are buffered and appended in batches. Completed days are rolled up into daily counts by device, version and
+ * language, and raw rows older than {@link FloodgateSettings#getJoinLogRetentionDays()} are deleted.
+ * Trends are read from the rollups only. Joins whose batch fails to be written are counted as dropped.
+ */
+public class FloodgateJoinLog {
+
+    private final QueryService queryService;
+    private final Executor waitOn;
+    private final int maxBuffered;
+
+    // Guarded by this
+    private List<LoggedJoin> buffer = new ArrayList<>();
+    private final AtomicLong droppedJoins = new AtomicLong();
+
+    public FloodgateJoinLog(QueryService queryService, ScheduledExecutorService scheduler, Executor waitOn) {
+        this.queryService = queryService;
+        this.waitOn = waitOn;
+        this.maxBuffered = FloodgateSettings.getWriteQueueCapacity();
+
+        long flushInterval = FloodgateSettings.getWriteFlushInterval();
+        scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        long rollupInterval = FloodgateSettings.getJoinLogRollupInterval();
+        scheduler.scheduleWithFixedDelay(this::rollup, TimeUnit.MINUTES.toMillis(1), rollupInterval, TimeUnit.MILLISECONDS);
+    }
+
+    List<Future<?>> createTables(boolean sqlite) {
+        Future<?> joinsCreated = queryService.execute("CREATE TABLE IF NOT EXISTS plan_platform_joins (" +
+                "id " + (sqlite ? "integer PRIMARY KEY" : "int NOT NULL AUTO_INCREMENT") + ',' +
+                "uuid varchar(36) NOT NULL," +
+                "day int NOT NULL," +
+                "joined bigint NOT NULL," +
+                "platform int NOT NULL," +
+                "languageCode VARCHAR(8) NOT NULL," +
+                "version VARCHAR(16) NOT NULL" +
+                (sqlite ? "" : ",PRIMARY KEY (id)") +
+                ")", PreparedStatement::execute);
+        Future<?> daysCreated = queryService.execute("CREATE TABLE IF NOT EXISTS plan_platform_join_days (" +
+                "day int NOT NULL," +
+                "platform int NOT NULL," +
+                "languageCode VARCHAR(8) NOT NULL," +
+                "version VARCHAR(16) NOT NULL," +
+                "joins int NOT NULL," +
+                "UNIQUE (day, platform, languageCode, version)" +
+                ")", PreparedStatement::execute);
+        return Arrays.asList(joinsCreated, daysCreated);
+    }
+
+    void clear() {
+        synchronized (this) {
+            buffer = new ArrayList<>();
+        }
+        queryService.execute("DELETE FROM plan_platform_joins", PreparedStatement::execute);
+        queryService.execute("DELETE FROM plan_platform_join_days", PreparedStatement::execute);
+    }
+
+    void removePlayers(List<UUID> playerUUIDs) {
+        String sql = "DELETE FROM plan_platform_joins WHERE uuid IN (" +
+                FloodgateStorage.placeholders(playerUUIDs.size()) + ')';
+        queryService.execute(sql, statement -> {
+            FloodgateStorage.setUUIDs(statement, playerUUIDs);
+            statement.execute();
+        });
+    }
+
+    private static long today() {
+        return LocalDate.now(ZoneOffset.UTC).toEpochDay();
+    }
+
+    /**
+     * Add a join to the history. Does not block, joins are dropped if the buffer is full.
+     *
+     * @param data     Data of the joined player
+     * @param joinedAt Epoch millisecond of the join
+     */
+    public void append(FloodgatePlayerData data, long joinedAt) {
+        synchronized (this) {
+            if (buffer.size() < maxBuffered) {
+                buffer.add(new LoggedJoin(data, joinedAt));
+                return;
+            }
+        }
+        droppedJoins.incrementAndGet();
+    }
+
+    public long getDroppedJoins() {
+        return droppedJoins.get();
+    }
+
+    /**
+     * Check if a join of the player has been logged, by any node.
+     *
+     * @param playerUUID UUID of the player
+     * @param since      Epoch millisecond from which joins are looked for
+     * @return true if there is a logged join since the given time
+     */
+    public boolean isLogged(UUID playerUUID, long since) {
+        return queryService.query("SELECT 1 FROM plan_platform_joins WHERE uuid=? AND joined >= ?", statement -> {
+            statement.setString(1, playerUUID.toString());
+            statement.setLong(2, since);
+            try (ResultSet set = statement.executeQuery()) {
+                return set.next();
+            }
+        });
+    }
+
+    /**
+     * Append the buffered joins.
+     */
+    void flush() {
+        List<LoggedJoin> joins;
+        synchronized (this) {
+            if (buffer.isEmpty()) return;
+            joins = buffer;
+            buffer = new ArrayList<>();
+        }
+        Future<?> inserted;
+        try {
+            inserted = insert(joins);
+        } catch (RuntimeException e) {
+            droppedJoins.addAndGet(joins.size());
+            return;
+        }
+        FloodgateStorage.toCompletableFuture(inserted, waitOn).whenComplete((result, failure) -> {
+            if (failure != null) droppedJoins.addAndGet(joins.size());
+        });
+    }
+
+    private Future<?> insert(List<LoggedJoin> joins) {
+        String sql = "INSERT INTO plan_platform_joins (uuid, day, joined, platform, languageCode, version) " +
+                "VALUES (?, ?, ?, ?, ?, ?)";
+        return queryService.execute(sql, statement -> {
+            for (LoggedJoin join : joins) {
+                statement.setString(1, join.data.getPlayerUUID().toString());
+                statement.setLong(2, TimeUnit.MILLISECONDS.toDays(join.joinedAt));
+                statement.setLong(3, join.joinedAt);
+                statement.setInt(4, join.data.getPlatform().ordinal());
+                statement.setString(5, join.data.getLanguageCode());
+                statement.setString(6, join.data.getVersion());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        });
+    }
+
+    private void rollup() {
+        try {
+            long today = today();
+            Long lastRolledDay = queryService.query("SELECT MAX(day) as last_day FROM plan_platform_join_days", statement -> {
+                try (ResultSet set = statement.executeQuery()) {
+                    if (!set.next()) return null;
+                    long lastDay = set.getLong("last_day");
+                    return set.wasNull() ? null : lastDay;
+                }
+            });
+            long rollFrom = lastRolledDay != null ? lastRolledDay : -1L;
+
+            // Days are rolled up once, after they have ended.
+            String rollupSql = "INSERT INTO plan_platform_join_days (day, platform, languageCode, version, joins) " +
+                    "SELECT day, platform, languageCode, version, COUNT(*) " +
+                    "FROM plan_platform_joins WHERE day > ? AND day < ? " +
+                    "GROUP BY day, platform, languageCode, version";
+            queryService.execute(rollupSql, statement -> {
+                statement.setLong(1, rollFrom);
+                statement.setLong(2, today);
+                statement.execute();
+            }).get();
+
+            queryService.execute("DELETE FROM plan_platform_joins WHERE day < ?", statement -> {
+                // Only days that have been rolled up above are deleted
+                statement.setLong(1, today - Math.max(1, FloodgateSettings.getJoinLogRetentionDays()));
+                statement.execute();
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ignored) {
+            // Tried again on the next run
+        }
+    }
+
+    /**
+     * @param days How many completed days to include
+     * @return Joins per day from the daily rollups, latest day first
+     */
+    public Map<LocalDate, Long> getJoinsPerDay(int days) {
+        String sql = "SELECT day, SUM(joins) as joins FROM plan_platform_join_days " +
+                "WHERE day >= ? GROUP BY day ORDER BY day DESC";
+        return queryService.query(sql, statement -> {
+            statement.setLong(1, today() - days);
+            try (ResultSet set = statement.executeQuery()) {
+                Map<LocalDate, Long> joinsPerDay = new LinkedHashMap<>();
+                while (set.next()) {
+                    joinsPerDay.put(LocalDate.ofEpochDay(set.getLong("day")), set.getLong("joins"));
+                }
+                return joinsPerDay;
+            }
+        });
+    }
+
+    /**
+     * Compare joins by device between the latest two periods of completed days, from the daily rollups.
+     *
+     * @param days Length of one period in days
+     * @return Device - [joins during the latest period, joins during the period before it]
+     */
+    public Map<DeviceOs, long[]> getDeviceTrend(int days) {
+        long periodStart = today() - days;
+        String sql = "SELECT platform, " +
+                "SUM(CASE WHEN day >= ? THEN joins ELSE 0 END) as recent, " +
+                "SUM(CASE WHEN day < ? THEN joins ELSE 0 END) as previous " +
+                "FROM plan_platform_join_days WHERE day >= ? " +
+                "GROUP BY platform ORDER BY recent DESC";
+        return queryService.query(sql, statement -> {
+            statement.setLong(1, periodStart);
+            statement.setLong(2, periodStart);
+            statement.setLong(3, periodStart - days);
+            try (ResultSet set = statement.executeQuery()) {
+                Map<DeviceOs, long[]> trend = new LinkedHashMap<>();
+                while (set.next()) {
+                    trend.put(DeviceOs.fromId(set.getInt("platform")),
+                            new long[]{set.getLong("recent"), set.getLong("previous")});
+                }
+                return trend;
+            }
+        });
+    }
+
+    private static class LoggedJoin {
+        private final FloodgatePlayerData data;
+        private final long joinedAt;
+
+        private LoggedJoin(FloodgatePlayerData data, long joinedAt) {
+            this.data = data;
+            this.joinedAt = joinedAt;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Lets through at most one join per player per window, for players that reconnect over and over.
+ * <p>
+ * The first join of a player starts a window and is stored right away. Joins during the window replace each other,
+ * and the latest one is released once the window is over, so the last state of the player is always stored.
+ */
+public class FloodgateJoinThrottle {
+
+    private final long windowMs;
+    private final FloodgateMetrics metrics;
+
+    // Guarded by this
+    private final Map<UUID, Window> windows = new HashMap<>();
+
+    public FloodgateJoinThrottle(long windowMs, FloodgateMetrics metrics) {
+        this.windowMs = windowMs;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start releasing the latest joins of windows that are over.
+     *
+     * @param scheduler Scheduler to check the windows on
+     * @param release   Called with each released join, on the scheduler thread
+     */
+    public void start(ScheduledExecutorService scheduler, Consumer<FloodgateJoin> release) {
+        if (windowMs <= 0) return;
+        // Checked once per window, so a held back join is released at most two windows after the first join
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (FloodgateJoin join : takeEnded()) {
+                metrics.releasedJoin();
+                release.accept(join);
+            }
+        }, windowMs, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param join Join of a player
+     * @return true if the join should be stored now, false if it is held back until the window of the player ends
+     */
+    public boolean tryPass(FloodgateJoin join) {
+        if (windowMs <= 0) return true;
+        UUID playerUUID = join.getData().getPlayerUUID();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Window window = windows.get(playerUUID);
+            if (window == null || now - window.startedAt >= windowMs && window.latest == null) {
+                windows.put(playerUUID, new Window(now));
+                return true;
+            }
+            window.latest = join;
+        }
+        metrics.throttledJoin();
+        return false;
+    }
+
+    private synchronized List<FloodgateJoin> takeEnded() {
+        long now = System.currentTimeMillis();
+        List<FloodgateJoin> ended = new ArrayList<>();
+        Iterator<Window> iterator = windows.values().iterator();
+        while (iterator.hasNext()) {
+            Window window = iterator.next();
+            if (now - window.startedAt < windowMs) continue;
+            if (window.latest != null) {
+                // The released join starts a new window
+                ended.add(window.latest);
+                window.latest = null;
+                window.startedAt = now;
+            } else {
+                iterator.remove();
+            }
+        }
+        return ended;
+    }
+
+    /**
+     * Take every held back join, for storing them before shutdown.
+     *
+     * @return the latest held back join of each player
+     */
+    public synchronized List<FloodgateJoin> takeAll() {
+        List<FloodgateJoin> held = new ArrayList<>();
+        for (Window window : windows.values()) {
+            if (window.latest != null) held.add(window.latest);
+        }
+        windows.clear();
+        return held;
+    }
+
+    private static class Window {
+        private long startedAt;
+        private FloodgateJoin latest;
+
+        private Window(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+}
@@ -24,17 +24,183 @@
 package net.playeranalytics.extension.floodgate;
 
 import com.djrapitops.plan.extension.Caller;
+import com.djrapitops.plan.extension.NotReadyException;
+import org.geysermc.floodgate.api.FloodgateApi;
+import org.geysermc.floodgate.api.player.FloodgatePlayer;
+import org.geysermc.floodgate.util.LinkedPlayer;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public abstract class FloodgateListener {
 
     protected final FloodgateStorage storage;
     protected final Caller caller;
+    protected final FloodgateWriteQueue writeQueue;
+    private final FloodgateRefreshScheduler refreshes;
+    private final FloodgateJoinThrottle throttle;
+    private final boolean ownsWrites;
+    // Set when a join turned out to be written or logged by another node, that node then also logs the joins.
+    private volatile boolean writerSeen = false;
 
-    protected FloodgateListener(FloodgateStorage storage, Caller caller) {
+    /**
+     * @param storage             Storage of the Floodgate data
+     * @param caller              Caller of the extension
+     * @param ownsWritesByDefault true if this node owns the writes with the AUTO role: a proxy, or a server that is
+     *                            not set up behind a proxy
+     */
+    protected FloodgateListener(FloodgateStorage storage, Caller caller, boolean ownsWritesByDefault) {
         this.storage = storage;
         this.caller = caller;
+        this.refreshes = new FloodgateRefreshScheduler(caller, FloodgateSettings.getRefreshesPerSecond(), storage.getMetrics());
+        refreshes.start(storage.getScheduler());
+        this.writeQueue = new FloodgateWriteQueue(storage, refreshes);
+        this.throttle = new FloodgateJoinThrottle(FloodgateSettings.getJoinThrottleWindow(), storage.getMetrics());
+        throttle.start(storage.getScheduler(), join -> runAsync(() -> storeLatestJoin(join)));
+
+        FloodgateSettings.NodeRole role = FloodgateSettings.getNodeRole();
+        this.ownsWrites = role == FloodgateSettings.NodeRole.WRITER
+                || role == FloodgateSettings.NodeRole.AUTO && ownsWritesByDefault;
+        new FloodgateReconciler(storage, writeQueue, () -> ownsWrites || !writerSeen).start();
     }
 
     abstract void register();
 
+    /**
+     * @return true once a join turned out to be written or logged by another node
+     */
+    boolean hasSeenWriter() {
+        return writerSeen;
+    }
+
+    /**
+     * Store the Floodgate data of a joined player, if they are a Bedrock player.
+     * <p>
+     * Call on the event thread: the data is copied there, so no Floodgate or platform objects are used off-thread.
+     *
+     * @param playerUUID UUID of the joined player
+     * @param playerName Name of the joined player
+     */
+    protected void onFloodgateJoin(UUID playerUUID, String playerName) {
+        try {
+            long joinedAt = System.nanoTime();
+            Optional.ofNullable(FloodgateApi.getInstance())
+                    .map(api -> api.getPlayer(playerUUID))
+                    .map(floodgatePlayer -> snapshot(playerUUID, playerName, floodgatePlayer, joinedAt))
+                    .ifPresent(join -> runAsync(() -> storeJoin(join)));
+        } catch (LinkageError ignored) {
+            // Related to
+            // https://github.com/plan-player-analytics/Plan/issues/2004
+            // https://github.com/GeyserMC/Floodgate/issues/178
+        }
+    }
+
+    private void runAsync(Runnable task) {
+        try {
+            storage.getExecutor().execute(task);
+        } catch (RejectedExecutionException busyOrClosed) {
+            // Counted by the executor, the reconciler stores the data of online players later
+        }
+    }
+
+    static FloodgateJoin snapshot(UUID playerUUID, String playerName, FloodgatePlayer floodgatePlayer, long joinedAt) {
+        LinkedPlayer linkedPlayer = floodgatePlayer.getLinkedPlayer();
+        return new FloodgateJoin(new FloodgatePlayerData(
+                playerUUID,
+                floodgatePlayer.getDeviceOs(),
+                floodgatePlayer.getUsername(),
+                floodgatePlayer.getJavaUsername(),
+                linkedPlayer != null ? linkedPlayer.getJavaUsername() : null,
+                floodgatePlayer.getLanguageCode(),
+                floodgatePlayer.getVersion()
+        ), playerName, joinedAt);
+    }
+
+    void storeJoin(FloodgateJoin join) {
+        logJoin(join.getData());
+        // Rejoins shortly after another join are stored once the window of the player is over
+        if (throttle.tryPass(join)) storeLatestJoin(join);
+    }
+
+    private void logJoin(FloodgatePlayerData data) {
+        long joinedAt = System.currentTimeMillis();
+        if (ownsWrites) {
+            storage.getJoinLog().append(data, joinedAt);
+        } else if (!writerSeen) {
+            // Behind a writing node (usually the proxy) the join is logged there, and joins here may be server switches.
+            long window = FloodgateSettings.getOwnershipWindow();
+            storage.getScheduler().schedule(
+                    () -> runAsync(() -> logJoinIfNotLogged(data, joinedAt, window)),
+                    window, TimeUnit.MILLISECONDS
+            );
+        }
+    }
+
+    private void logJoinIfNotLogged(FloodgatePlayerData data, long joinedAt, long window) {
+        boolean logged;
+        try {
+            logged = storage.getJoinLog().isLogged(data.getPlayerUUID(), joinedAt - window);
+        } catch (RuntimeException e) {
+            logged = false;
+        }
+        if (logged) {
+            writerSeen = true;
+        } else {
+            storage.getJoinLog().append(data, joinedAt);
+        }
+    }
+
+    private void storeLatestJoin(FloodgateJoin join) {
+        if (ownsWrites || storage.isUnchanged(join.getData())) {
+            offer(join);
+        } else {
+            // The writing node (usually the proxy) is likely storing the same data, look again after it had time to.
+            storage.getScheduler().schedule(
+                    () -> runAsync(() -> storeJoinIfNotWritten(join)),
+                    FloodgateSettings.getOwnershipWindow(), TimeUnit.MILLISECONDS
+            );
+        }
+    }
+
+    private void storeJoinIfNotWritten(FloodgateJoin join) {
+        FloodgatePlayerData data = join.getData();
+        if (isStored(data)) {
+            storage.getMetrics().joinWrittenElsewhere();
+            writerSeen = true;
+            refreshes.request(data.getPlayerUUID(), join.getPlayerName());
+        } else {
+            offer(join);
+        }
+    }
+
+    private boolean isStored(FloodgatePlayerData data) {
+        try {
+            return storage.reloadPlayer(data.getPlayerUUID()).filter(data::equals).isPresent();
+        } catch (NotReadyException databaseFailing) {
+            return false; // Queued, and written once the database recovers
+        }
+    }
+
+    private void offer(FloodgateJoin join) {
+        try {
+            writeQueue.offer(join);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write the joins that are still queued and stop the extension's threads, called when Plan is shutting down.
+     */
+    protected void close() {
+        // Written directly, there is no time left to wait for another node
+        for (FloodgateJoin join : throttle.takeAll()) {
+            offer(join);
+        }
+        writeQueue.close();
+        storage.close();
+    }
+
 }
@@ -0,0 +1,259 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import com.djrapitops.plan.query.QueryService;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bedrock player counts by language code, kept in plan_platform_locales.
+ * <p>
+ * Stored joins and removed players change the counts by the difference they make, so the counts rarely need a scan
+ * of plan_platforms. The table is filled from plan_platforms when it is empty, after an import, and every
+ * {@link FloodgateSettings#getAggregateResyncInterval()} to correct drift, such as rows written by other servers.
+ * Region counts are summed from the language codes ("en_US" is region "US").
+ */
+public class FloodgateLocales {
+
+    private static final String UNKNOWN_REGION = "Unknown";
+
+    private final QueryService queryService;
+    private final boolean sqlite;
+    private final FloodgateDictionary dictionary;
+
+    private final Executor waitOn;
+
+    // Guarded by this, language code -> change not written yet
+    private Map<String, Long> pending = new HashMap<>();
+    // Guarded by this, changed when the counts are replaced. Changes from before that are already in the counts.
+    private long generation = 0L;
+
+    public FloodgateLocales(QueryService queryService, boolean sqlite, FloodgateDictionary dictionary,
+                            ScheduledExecutorService scheduler, Executor waitOn) {
+        this.queryService = queryService;
+        this.sqlite = sqlite;
+        this.dictionary = dictionary;
+        this.waitOn = waitOn;
+
+        long flushInterval = FloodgateSettings.getWriteFlushInterval();
+        scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        long resyncInterval = FloodgateSettings.getAggregateResyncInterval();
+        if (resyncInterval > 0) {
+            scheduler.scheduleWithFixedDelay(this::recount, resyncInterval, resyncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    Future<?> createTable() {
+        return queryService.execute("CREATE TABLE IF NOT EXISTS plan_platform_locales (" +
+                "languageCode VARCHAR(8) NOT NULL UNIQUE," +
+                "players int NOT NULL" +
+                ")", PreparedStatement::execute);
+    }
+
+    /**
+     * Count the players of plan_platforms, if the table has no counts yet.
+     */
+    void fillIfEmpty() {
+        Boolean empty = queryService.query("SELECT 1 FROM plan_platform_locales", statement -> {
+            try (ResultSet set = statement.executeQuery()) {
+                return !set.next();
+            }
+        });
+        if (Boolean.TRUE.equals(empty)) recount();
+    }
+
+    /**
+     * Replace the counts with a count of plan_platforms, for when the rows changed without the differences being
+     * known.
+     */
+    void recount() {
+        queryService.execute("DELETE FROM plan_platform_locales", statement -> {
+            // Changes of the rows written before this transaction are in the count
+            replaceCounts();
+            statement.execute();
+            try (PreparedStatement insert = statement.getConnection().prepareStatement(
+                    "INSERT INTO plan_platform_locales (languageCode, players) " +
+                            "SELECT " + dictionary.languageCode() + ", COUNT(*) FROM " + dictionary.tables() +
+                            " GROUP BY " + dictionary.languageCode())) {
+                insert.execute();
+            }
+        });
+    }
+
+    /**
+     * Apply a stored join to the counts.
+     *
+     * @param previous Row of the player before the join, if there was one
+     * @param current  Row of the player after the join
+     */
+    public void update(Optional<FloodgatePlayerData> previous, FloodgatePlayerData current) {
+        String previousLanguage = previous.map(FloodgatePlayerData::getLanguageCode).orElse(null);
+        String language = current.getLanguageCode();
+        if (language.equals(previousLanguage)) return;
+        synchronized (this) {
+            if (previousLanguage != null) pending.merge(previousLanguage, -1L, Long::sum);
+            pending.merge(language, 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Subtract players that are about to be deleted from plan_platforms, in the same transaction as the delete.
+     *
+     * @param connection  Connection of the transaction
+     * @param playerUUIDs Players to subtract
+     * @throws SQLException If the update fails
+     */
+    void subtractRemoved(Connection connection, List<UUID> playerUUIDs) throws SQLException {
+        String languageCode = dictionary.languageCode();
+        String removed = "FROM " + dictionary.tables() +
+                " WHERE p.uuid IN (" + FloodgateStorage.placeholders(playerUUIDs.size()) + ')';
+        String sql = "UPDATE plan_platform_locales SET players = players - (" +
+                "SELECT COUNT(*) " + removed + " AND " + languageCode + "=plan_platform_locales.languageCode" +
+                ") WHERE languageCode IN (SELECT " + languageCode + ' ' + removed + ')';
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            int size = playerUUIDs.size();
+            for (int i = 0; i < size; i++) {
+                String playerUUID = playerUUIDs.get(i).toString();
+                statement.setString(i + 1, playerUUID);
+                statement.setString(size + i + 1, playerUUID);
+            }
+            statement.execute();
+        }
+    }
+
+    void clear() {
+        queryService.execute("DELETE FROM plan_platform_locales", statement -> {
+            replaceCounts();
+            statement.execute();
+        });
+    }
+
+    private synchronized void replaceCounts() {
+        pending = new HashMap<>();
+        generation++;
+    }
+
+    /**
+     * Write the changes to the counts that have not been written yet.
+     * <p>
+     * Changes of a write that fails are kept for the next flush.
+     */
+    void flush() {
+        Map<String, Long> changes;
+        long changesGeneration;
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            changes = pending;
+            changesGeneration = generation;
+            pending = new HashMap<>();
+        }
+        String sql = "INSERT INTO plan_platform_locales (languageCode, players) VALUES (?, ?)" + (sqlite
+                ? " ON CONFLICT(languageCode) DO UPDATE SET players = players + excluded.players"
+                : " ON DUPLICATE KEY UPDATE players = players + VALUES(players)");
+        Future<?> written;
+        try {
+            written = queryService.execute(sql, statement -> {
+                synchronized (this) {
+                    // Counts were replaced after the changes were taken, they already include them
+                    if (generation != changesGeneration) return;
+                }
+                boolean batched = false;
+                for (Map.Entry<String, Long> change : changes.entrySet()) {
+                    if (change.getValue() == 0L) continue;
+                    statement.setString(1, change.getKey());
+                    statement.setLong(2, change.getValue());
+                    statement.addBatch();
+                    batched = true;
+                }
+                if (batched) statement.executeBatch();
+            });
+        } catch (RuntimeException e) {
+            restore(changes, changesGeneration);
+            return;
+        }
+        FloodgateStorage.toCompletableFuture(written, waitOn).whenComplete((result, failure) -> {
+            if (failure != null) restore(changes, changesGeneration);
+        });
+    }
+
+    private synchronized void restore(Map<String, Long> changes, long changesGeneration) {
+        if (generation != changesGeneration) return;
+        for (Map.Entry<String, Long> change : changes.entrySet()) {
+            pending.merge(change.getKey(), change.getValue(), Long::sum);
+        }
+    }
+
+    /**
+     * @return Player counts by language code, most players first
+     */
+    public List<Map.Entry<String, Long>> getLanguages() {
+        String sql = "SELECT languageCode, players FROM plan_platform_locales WHERE players > 0 ORDER BY players DESC";
+        return queryService.query(sql, statement -> {
+            try (ResultSet set = statement.executeQuery()) {
+                List<Map.Entry<String, Long>> languages = new ArrayList<>();
+                while (set.next()) {
+                    languages.add(new AbstractMap.SimpleImmutableEntry<>(set.getString(1), set.getLong(2)));
+                }
+                return languages;
+            }
+        });
+    }
+
+    /**
+     * @return Player counts by the region part of the language code, most players first
+     */
+    public List<Map.Entry<String, Long>> getRegions() {
+        Map<String, Long> regions = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> language : getLanguages()) {
+            regions.merge(getRegion(language.getKey()), language.getValue(), Long::sum);
+        }
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(regions.entrySet());
+        sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return sorted;
+    }
+
+    static String getRegion(String languageCode) {
+        int separator = languageCode.indexOf('_');
+        if (separator == -1) separator = languageCode.indexOf('-');
+        if (separator == -1 || separator == languageCode.length() - 1) return UNKNOWN_REGION;
+        return languageCode.substring(separator + 1).toUpperCase(Locale.ROOT);
+    }
+}
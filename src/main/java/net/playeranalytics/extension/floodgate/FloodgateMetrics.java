@@ -0,0 +1,263 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters and latency histograms of the database work done by the extension.
+ */
+public class FloodgateMetrics {
+
+    public enum Operation {
+        STORE("Store joins"),
+        READ("Read player"),
+        REMOVE("Remove player"),
+        CLEAR("Clear data"),
+        JOIN_TO_STORED("Join until stored");
+
+        private final String name;
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final Map<Operation, Histogram> histograms = new EnumMap<>(Operation.class);
+    private final AtomicLong skippedJoins = new AtomicLong();
+    private final AtomicLong writtenJoins = new AtomicLong();
+    private final AtomicLong joinsWrittenElsewhere = new AtomicLong();
+    private final AtomicLong shedJoins = new AtomicLong();
+    private final AtomicLong failedJoins = new AtomicLong();
+    private final AtomicLong shedTasks = new AtomicLong();
+    private final AtomicLong throttledJoins = new AtomicLong();
+    private final AtomicLong releasedJoins = new AtomicLong();
+    private final AtomicLong requestedRefreshes = new AtomicLong();
+    private final AtomicLong ranRefreshes = new AtomicLong();
+    private final AtomicLong reconciledPlayers = new AtomicLong();
+    private volatile IntSupplier queueSize = () -> 0;
+
+    public FloodgateMetrics() {
+        for (Operation operation : Operation.values()) {
+            histograms.put(operation, new Histogram());
+        }
+    }
+
+    public void record(Operation operation, long startNanos) {
+        histograms.get(operation).record(System.nanoTime() - startNanos);
+    }
+
+    public Histogram getHistogram(Operation operation) {
+        return histograms.get(operation);
+    }
+
+    public void skippedJoin() {
+        skippedJoins.incrementAndGet();
+    }
+
+    public void writtenJoins(int amount) {
+        writtenJoins.addAndGet(amount);
+    }
+
+    /**
+     * @return Amount of joins that were not written because the stored row already had the same data.
+     */
+    public long getSkippedJoins() {
+        return skippedJoins.get();
+    }
+
+    /**
+     * @return Amount of joins that have been written to the database.
+     */
+    public long getWrittenJoins() {
+        return writtenJoins.get();
+    }
+
+    public void joinWrittenElsewhere() {
+        joinsWrittenElsewhere.incrementAndGet();
+    }
+
+    /**
+     * @return Amount of joins this node did not write because another node had already written the same data.
+     */
+    public long getJoinsWrittenElsewhere() {
+        return joinsWrittenElsewhere.get();
+    }
+
+    public void shedJoin() {
+        shedJoins.incrementAndGet();
+    }
+
+    /**
+     * @return Amount of joins that were dropped because the queue was full while the database was slow or failing.
+     */
+    public long getShedJoins() {
+        return shedJoins.get();
+    }
+
+    public void failedJoins(int amount) {
+        failedJoins.addAndGet(amount);
+    }
+
+    /**
+     * @return Amount of joins that were dropped because writing them failed, even one at a time.
+     */
+    public long getFailedJoins() {
+        return failedJoins.get();
+    }
+
+    public void shedTask() {
+        shedTasks.incrementAndGet();
+    }
+
+    /**
+     * @return Amount of tasks that were not run because the extension's own threads had no room for them.
+     */
+    public long getShedTasks() {
+        return shedTasks.get();
+    }
+
+    public void throttledJoin() {
+        throttledJoins.incrementAndGet();
+    }
+
+    /**
+     * @return Amount of joins that were held back because the player had joined shortly before.
+     */
+    public long getThrottledJoins() {
+        return throttledJoins.get();
+    }
+
+    public void releasedJoin() {
+        releasedJoins.incrementAndGet();
+    }
+
+    /**
+     * @return Amount of held back joins that were stored after the window of the player ended.
+     */
+    public long getReleasedJoins() {
+        return releasedJoins.get();
+    }
+
+    public void requestedRefresh() {
+        requestedRefreshes.incrementAndGet();
+    }
+
+    /**
+     * @return Amount of player updates requested after stored joins, including ones for players already waiting.
+     */
+    public long getRequestedRefreshes() {
+        return requestedRefreshes.get();
+    }
+
+    public void ranRefresh() {
+        ranRefreshes.incrementAndGet();
+    }
+
+    /**
+     * @return Amount of player updates Plan was asked to do.
+     */
+    public long getRanRefreshes() {
+        return ranRefreshes.get();
+    }
+
+    public void reconciledPlayer() {
+        reconciledPlayers.incrementAndGet();
+    }
+
+    /**
+     * @return Amount of online players whose stored row differed from their Floodgate data and was queued again.
+     */
+    public long getReconciledPlayers() {
+        return reconciledPlayers.get();
+    }
+
+    void setQueueSize(IntSupplier queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public int getQueueSize() {
+        return queueSize.getAsInt();
+    }
+
+    /**
+     * Lock-free histogram with power of two buckets in microseconds.
+     */
+    public static class Histogram {
+        // Bucket i counts durations below 2^i microseconds, the last one everything longer.
+        private static final int BUCKETS = 32;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0L, nanos));
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getAverageMs() {
+            long calls = count.get();
+            return calls > 0 ? totalNanos.get() / 1_000_000.0 / calls : 0.0;
+        }
+
+        /**
+         * @param percentile Percentile between 0 and 1
+         * @return Upper bound of the bucket holding the percentile, in milliseconds
+         */
+        public double getPercentileMs(double percentile) {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) return 0.0;
+
+            long target = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= target) return (1L << i) / 1000.0;
+            }
+            return (1L << (BUCKETS - 1)) / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Immutable copy of a single row in plan_platforms.
+ */
+public final class FloodgatePlayerData {
+
+    private final UUID playerUUID;
+    private final DeviceOs platform;
+    private final String bedrockUsername;
+    private final String javaUsername;
+    private final String linkedPlayer;
+    private final String languageCode;
+    private final String version;
+
+    public FloodgatePlayerData(UUID playerUUID, DeviceOs platform, String bedrockUsername, String javaUsername,
+                               String linkedPlayer, String languageCode, String version) {
+        this.playerUUID = playerUUID;
+        this.platform = platform;
+        this.bedrockUsername = bedrockUsername;
+        this.javaUsername = javaUsername;
+        this.linkedPlayer = linkedPlayer;
+        this.languageCode = FloodgateDictionary.intern(languageCode);
+        this.version = FloodgateDictionary.intern(version);
+    }
+
+    public UUID getPlayerUUID() {
+        return playerUUID;
+    }
+
+    public DeviceOs getPlatform() {
+        return platform;
+    }
+
+    public String getBedrockUsername() {
+        return bedrockUsername;
+    }
+
+    public String getJavaUsername() {
+        return javaUsername;
+    }
+
+    public String getLinkedPlayer() {
+        return linkedPlayer;
+    }
+
+    public String getLanguageCode() {
+        return languageCode;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Hash of the stored fields, used to tell if a join changed anything.
+     *
+     * @return 64-bit FNV-1a hash of the fields
+     */
+    public long getFingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        if (playerUUID != null) {
+            hash = fingerprint(fingerprint(hash, playerUUID.getMostSignificantBits()), playerUUID.getLeastSignificantBits());
+        } else {
+            hash = fingerprint(hash, (String) null);
+        }
+        hash = fingerprint(hash, platform != null ? platform.ordinal() : -1L);
+        hash = fingerprint(hash, bedrockUsername);
+        hash = fingerprint(hash, javaUsername);
+        hash = fingerprint(hash, linkedPlayer);
+        hash = fingerprint(hash, languageCode);
+        return fingerprint(hash, version);
+    }
+
+    private static long fingerprint(long hash, long field) {
+        for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+            hash = (hash ^ ((field >>> shift) & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long fingerprint(long hash, String field) {
+        if (field == null) {
+            return (hash ^ 0xff) * 0x100000001b3L;
+        }
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            hash = (hash ^ (c & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        // Separator, so that ("ab", "c") and ("a", "bc") differ
+        return (hash ^ 0xfe) * 0x100000001b3L;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FloodgatePlayerData that = (FloodgatePlayerData) o;
+        return Objects.equals(playerUUID, that.playerUUID) &&
+                platform == that.platform &&
+                Objects.equals(bedrockUsername, that.bedrockUsername) &&
+                Objects.equals(javaUsername, that.javaUsername) &&
+                Objects.equals(linkedPlayer, that.linkedPlayer) &&
+                Objects.equals(languageCode, that.languageCode) &&
+                Objects.equals(version, that.version);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(playerUUID, platform, bedrockUsername, javaUsername, linkedPlayer, languageCode, version);
+    }
+
+    @Override
+    public String toString() {
+        return "FloodgatePlayerData{" +
+                "playerUUID=" + playerUUID +
+                ", platform=" + platform +
+                ", bedrockUsername='" + bedrockUsername + '\'' +
+                ", javaUsername='" + javaUsername + '\'' +
+                ", linkedPlayer='" + linkedPlayer + '\'' +
+                ", languageCode='" + languageCode + '\'' +
+                ", version='" + version + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.api.FloodgateApi;
+import org.geysermc.floodgate.api.player.FloodgatePlayer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Periodically compares the online Bedrock players with their stored rows, and queues the ones that differ.
+ * <p>
+ * Corrects rows after missed joins. The online players are gone through in batches on the join executor, with a
+ * pause after each batch so that the job uses at most {@link FloodgateSettings#getReconcileDutyPercent()} percent
+ * of the time it runs for.
+ */
+public class FloodgateReconciler {
+
+    private final FloodgateStorage storage;
+    private final FloodgateWriteQueue writeQueue;
+    private final BooleanSupplier writesAllowed;
+    private final ScheduledExecutorService scheduler;
+    private final int batchSize;
+    private final int dutyPercent;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * @param storage       Storage of the Floodgate data
+     * @param writeQueue    Queue the differing players are written through
+     * @param writesAllowed Tells if this node should write the players, checked before each run
+     */
+    public FloodgateReconciler(FloodgateStorage storage, FloodgateWriteQueue writeQueue, BooleanSupplier writesAllowed) {
+        this.storage = storage;
+        this.writeQueue = writeQueue;
+        this.writesAllowed = writesAllowed;
+        this.scheduler = storage.getScheduler();
+        this.batchSize = Math.max(1, FloodgateSettings.getReconcileBatchSize());
+        this.dutyPercent = Math.max(1, Math.min(100, FloodgateSettings.getReconcileDutyPercent()));
+    }
+
+    /**
+     * Start the periodic runs, unless disabled with plan.floodgate.reconcile.interval=0.
+     */
+    public void start() {
+        long interval = FloodgateSettings.getReconcileInterval();
+        if (interval <= 0) return;
+        scheduler.scheduleWithFixedDelay(this::startRun, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void startRun() {
+        if (!writesAllowed.getAsBoolean() || storage.getCircuitBreaker().isOpen()) return;
+        if (!running.compareAndSet(false, true)) return; // The previous run is still going
+        List<UUID> online = new ArrayList<>();
+        try {
+            FloodgateApi api = FloodgateApi.getInstance();
+            if (api != null) {
+                for (FloodgatePlayer player : api.getPlayers()) {
+                    online.add(player.getCorrectUniqueId());
+                }
+            }
+        } catch (LinkageError | RuntimeException e) {
+            // Floodgate is being reloaded, tried again on the next run
+            online.clear();
+        }
+        if (online.isEmpty()) {
+            running.set(false);
+            return;
+        }
+        runBatch(online, 0);
+    }
+
+    private void runBatch(List<UUID> online, int from) {
+        try {
+            storage.getExecutor().execute(() -> runBatchNow(online, from));
+        } catch (RejectedExecutionException busy) {
+            // Joins have the threads, the next run compares again
+            running.set(false);
+        }
+    }
+
+    private void runBatchNow(List<UUID> online, int from) {
+        long start = System.nanoTime();
+        int to = Math.min(online.size(), from + batchSize);
+        try {
+            for (int i = from; i < to; i++) {
+                reconcile(online.get(i));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running.set(false);
+            return;
+        } catch (LinkageError | RuntimeException e) {
+            running.set(false);
+            return;
+        }
+        if (to >= online.size() || storage.getCircuitBreaker().isOpen()) {
+            running.set(false);
+            return;
+        }
+        long pause = (System.nanoTime() - start) * (100 - dutyPercent) / dutyPercent;
+        try {
+            scheduler.schedule(() -> runBatch(online, to), pause, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException schedulerShutDown) {
+            running.set(false);
+        }
+    }
+
+    private void reconcile(UUID playerUUID) throws InterruptedException {
+        FloodgateApi api = FloodgateApi.getInstance();
+        FloodgatePlayer player = api != null ? api.getPlayer(playerUUID) : null;
+        if (player == null) return; // Left after the run started
+
+        FloodgateJoin join = FloodgateListener.snapshot(playerUUID, player.getCorrectUsername(), player, System.nanoTime());
+        if (storage.isUnchanged(join.getData())) return;
+        storage.getMetrics().reconciledPlayer();
+        writeQueue.offer(join);
+    }
+}
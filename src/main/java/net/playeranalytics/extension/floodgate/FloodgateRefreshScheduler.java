@@ -0,0 +1,111 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import com.djrapitops.plan.extension.Caller;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells Plan to update the data of players whose Floodgate data was stored, a limited amount per second.
+ * <p>
+ * Every update makes Plan call all the player providers of the extension, so during a join spike they are spread
+ * out instead of being run together with the joins. A player with an update already waiting is not added twice.
+ * Updates are only requested after the write of the player has completed.
+ */
+public class FloodgateRefreshScheduler {
+
+    private static final long TICK_MS = TimeUnit.SECONDS.toMillis(1);
+
+    private final Caller caller;
+    private final int perSecond;
+    private final FloodgateMetrics metrics;
+
+    // Guarded by this, player UUID -> player name in request order
+    private final Map<UUID, String> pending = new LinkedHashMap<>();
+
+    public FloodgateRefreshScheduler(Caller caller, int perSecond, FloodgateMetrics metrics) {
+        this.caller = caller;
+        this.perSecond = perSecond;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start running the requested updates.
+     *
+     * @param scheduler Scheduler to run them on
+     */
+    public void start(ScheduledExecutorService scheduler) {
+        if (perSecond <= 0) return;
+        scheduler.scheduleWithFixedDelay(this::runUpdates, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Request Plan to update the data of a player.
+     *
+     * @param playerUUID UUID of the player
+     * @param playerName Name of the player
+     */
+    public void request(UUID playerUUID, String playerName) {
+        metrics.requestedRefresh();
+        if (perSecond <= 0) {
+            metrics.ranRefresh();
+            caller.updatePlayerData(playerUUID, playerName);
+            return;
+        }
+        synchronized (this) {
+            pending.put(playerUUID, playerName);
+        }
+    }
+
+    private void runUpdates() {
+        for (int i = 0; i < perSecond; i++) {
+            Map.Entry<UUID, String> next = takeNext();
+            if (next == null) return;
+            metrics.ranRefresh();
+            try {
+                caller.updatePlayerData(next.getKey(), next.getValue());
+            } catch (RuntimeException e) {
+                // An exception would cancel the updates that come after
+            }
+        }
+    }
+
+    private synchronized Map.Entry<UUID, String> takeNext() {
+        Iterator<Map.Entry<UUID, String>> iterator = pending.entrySet().iterator();
+        if (!iterator.hasNext()) return null;
+        Map.Entry<UUID, String> next = iterator.next();
+        iterator.remove();
+        return next;
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tuning values for the extension, read from system properties (-Dplan.floodgate.*).
+ */
+public final class FloodgateSettings {
+
+    private static final String PREFIX = "plan.floodgate.";
+
+    /**
+     * Which node of a network writes the Floodgate data of joining players.
+     */
+    public enum NodeRole {
+        /**
+         * Proxies and standalone servers write, servers that are set up behind a proxy (BungeeCord or Velocity
+         * forwarding) wait for the proxy to write first.
+         */
+        AUTO,
+        /**
+         * This node writes every join right away.
+         */
+        WRITER,
+        /**
+         * This node waits for another node to write, and only writes if that did not happen.
+         */
+        READER
+    }
+
+    private FloodgateSettings() {
+        // Static utility class
+    }
+
+    private static long getLong(String key, long defaultValue) {
+        return Long.getLong(PREFIX + key, defaultValue);
+    }
+
+    private static int getInt(String key, int defaultValue) {
+        return Integer.getInteger(PREFIX + key, defaultValue);
+    }
+
+    /**
+     * @return Maximum amount of players kept in the row cache.
+     */
+    public static int getCacheSize() {
+        return getInt("cache.size", 2000);
+    }
+
+    /**
+     * @return How long a cached row is trusted before it is loaded again, in milliseconds.
+     */
+    public static long getCacheTtl() {
+        return getLong("cache.ttl", TimeUnit.MINUTES.toMillis(5));
+    }
+
+    /**
+     * @return Amount of queued joins that triggers an immediate flush, also the JDBC batch size.
+     */
+    public static int getWriteBatchSize() {
+        return getInt("write.batch-size", 50);
+    }
+
+    /**
+     * @return How long a queued join may wait before it is flushed, in milliseconds.
+     */
+    public static long getWriteFlushInterval() {
+        return getLong("write.flush-interval", TimeUnit.SECONDS.toMillis(1));
+    }
+
+    /**
+     * @return Maximum amount of distinct players waiting to be written before new joins have to wait.
+     */
+    public static int getWriteQueueCapacity() {
+        return getInt("write.queue-capacity", 1000);
+    }
+
+    /**
+     * @return How often the server-level counts are fully reloaded from the database, in milliseconds.
+     */
+    public static long getAggregateResyncInterval() {
+        return getLong("aggregates.resync-interval", TimeUnit.HOURS.toMillis(1));
+    }
+
+    /**
+     * @return true if the database timings of the extension should be shown on the server page.
+     */
+    public static boolean isMetricsShown() {
+        return Boolean.getBoolean(PREFIX + "metrics.show");
+    }
+
+    /**
+     * @return Role of this node when several Plan servers share the database.
+     */
+    public static NodeRole getNodeRole() {
+        String role = System.getProperty(PREFIX + "role", NodeRole.AUTO.name());
+        try {
+            return NodeRole.valueOf(role.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException unknownRole) {
+            return NodeRole.AUTO;
+        }
+    }
+
+    /**
+     * @return How long a reader node waits for the writer node to store a join, in milliseconds.
+     */
+    public static long getOwnershipWindow() {
+        return getLong("role.window", TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * @return How many days of raw join history are kept before only the daily counts remain.
+     */
+    public static int getJoinLogRetentionDays() {
+        return getInt("join-log.retention-days", 30);
+    }
+
+    /**
+     * @return How often completed days of join history are rolled up into daily counts, in milliseconds.
+     */
+    public static long getJoinLogRollupInterval() {
+        return getLong("join-log.rollup-interval", TimeUnit.HOURS.toMillis(1));
+    }
+
+    /**
+     * @return How many of the most recently added players are loaded into the cache on startup.
+     */
+    public static int getPreloadSize() {
+        return getInt("cache.preload", 1000);
+    }
+
+    /**
+     * @return How many rows are read per query while preloading the cache.
+     */
+    public static int getPreloadPageSize() {
+        return getInt("cache.preload-page-size", 250);
+    }
+
+    /**
+     * @return File to export plan_platforms to on startup, or null.
+     */
+    public static String getExportFile() {
+        return System.getProperty(PREFIX + "export");
+    }
+
+    /**
+     * @return File to import into plan_platforms on startup, or null.
+     */
+    public static String getImportFile() {
+        return System.getProperty(PREFIX + "import");
+    }
+
+    /**
+     * @return How many rows are read or written per query during an export or import.
+     */
+    public static int getTransferChunkSize() {
+        return getInt("transfer.chunk-size", 500);
+    }
+
+    /**
+     * @return At most how many rows of plan_platforms get their dictionary ids per transaction.
+     */
+    public static int getDictionaryMigrationChunkSize() {
+        return getInt("dictionary.migration-chunk-size", 1000);
+    }
+
+    /**
+     * @return Pause between the transactions that give rows their dictionary ids, in milliseconds.
+     */
+    public static long getDictionaryMigrationPause() {
+        return getLong("dictionary.migration-pause", 100L);
+    }
+
+    /**
+     * @return Duration after which a database call counts as slow for the circuit breaker, in milliseconds.
+     */
+    public static long getBreakerSlowCall() {
+        return getLong("breaker.slow-call", TimeUnit.SECONDS.toMillis(2));
+    }
+
+    /**
+     * @return How long the circuit breaker refuses database calls once it opens, in milliseconds.
+     */
+    public static long getBreakerOpenDuration() {
+        return getLong("breaker.open-duration", TimeUnit.SECONDS.toMillis(30));
+    }
+
+    /**
+     * @return Percentage of failed or slow calls in the window that opens the circuit breaker.
+     */
+    public static int getBreakerFailureRate() {
+        return getInt("breaker.failure-rate", 50);
+    }
+
+    /**
+     * @return How many of the latest database calls the circuit breaker looks at.
+     */
+    public static int getBreakerWindow() {
+        return getInt("breaker.window", 20);
+    }
+
+    /**
+     * @return How often rows changed by other servers are looked for on MySQL, in milliseconds, 0 to not look.
+     */
+    public static long getSyncInterval() {
+        return getLong("sync.interval", TimeUnit.SECONDS.toMillis(5));
+    }
+
+    /**
+     * @return How many changed rows are read per query when looking for rows changed by other servers.
+     */
+    public static int getSyncPageSize() {
+        return getInt("sync.page-size", 500);
+    }
+
+    /**
+     * @return Window in which repeated joins of a player are stored only once, in milliseconds, 0 to store all.
+     */
+    public static long getJoinThrottleWindow() {
+        return getLong("throttle.window", TimeUnit.MINUTES.toMillis(1));
+    }
+
+    /**
+     * @return How many players Plan is asked to update per second after their data was stored, 0 for no limit.
+     */
+    public static int getRefreshesPerSecond() {
+        return getInt("refresh.per-second", 20);
+    }
+
+    /**
+     * @return How often the online Bedrock players are compared with their stored rows, in milliseconds, 0 to turn off.
+     */
+    public static long getReconcileInterval() {
+        return getLong("reconcile.interval", TimeUnit.MINUTES.toMillis(10));
+    }
+
+    /**
+     * @return How many online players are compared with their stored rows before pausing.
+     */
+    public static int getReconcileBatchSize() {
+        return getInt("reconcile.batch-size", 50);
+    }
+
+    /**
+     * @return Percentage of its running time the comparison of online players may spend working instead of pausing.
+     */
+    public static int getReconcileDutyPercent() {
+        return getInt("reconcile.duty-percent", 10);
+    }
+
+    /**
+     * @return true if the database work of joins runs on the extension's own threads instead of Plan's async pool.
+     */
+    public static boolean isDedicatedExecutor() {
+        return Boolean.getBoolean(PREFIX + "executor.dedicated");
+    }
+
+    /**
+     * @return How many tasks the extension's own threads run at once.
+     */
+    public static int getExecutorConcurrency() {
+        return getInt("executor.concurrency", 10);
+    }
+
+    /**
+     * @return How many tasks may wait for a platform thread of the extension's own pool.
+     */
+    public static int getExecutorQueueCapacity() {
+        return getInt("executor.queue-capacity", 1000);
+    }
+}
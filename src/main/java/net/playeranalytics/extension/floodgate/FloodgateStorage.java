@@ -23,30 +23,266 @@
 
 package net.playeranalytics.extension.floodgate;
 
+import com.djrapitops.plan.extension.NotReadyException;
 import com.djrapitops.plan.query.QueryService;
 import org.geysermc.floodgate.util.DeviceOs;
 
+import java.io.IOException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class FloodgateStorage {
 
+    private static final Logger LOGGER = Logger.getLogger(FloodgateStorage.class.getName());
+
+    private static final long REMOVAL_DELAY_MS = 500L;
+    private static final long CLOSE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final int REMOVAL_CHUNK_SIZE = 500;
+    private static final int READ_CHUNK_SIZE = 500;
+    private static final int KNOWN_PLAYERS_PAGE_SIZE = 5000;
+
+    // Built once for both layouts of the table, picked by FloodgateDictionary.isAvailable()
+    private static final String SELECT_PLAYER = selectPlayer(true);
+    private static final String LEGACY_SELECT_PLAYER = selectPlayer(false);
+
     private final QueryService queryService;
+    private final boolean sqlite;
+    private final FloodgateCache<UUID, Optional<FloodgatePlayerData>> cache;
+    private final Map<UUID, Long> fingerprints;
+    private final FloodgateDictionary dictionary;
+    private final FloodgateAggregates aggregates;
+    private final FloodgateUUIDSet knownPlayers;
+    private final FloodgateMetrics metrics;
+    private final FloodgateJoinLog joinLog;
+    private final FloodgateLocales locales;
+    private final FloodgateCircuitBreaker breaker;
+    private volatile boolean knownPlayersLoaded = false;
+    private final FloodgateUpsert writeStatements;
+    private final FloodgateUpsert currentWriteStatements;
+    // Set once the database is known to have an upsert that handles both unique columns
+    private volatile boolean upsertSupported;
+    // Set once the updated, languageId and versionId columns are known to exist
+    private volatile boolean currentColumns = false;
+    private final Set<UUID> writing = ConcurrentHashMap.newKeySet();
+    // Previous rows of a write by amount of players, each built on first use
+    private final String[] selectPlayersIn = new String[READ_CHUNK_SIZE + 1];
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final FloodgateExecutor asyncExecutor;
+    private final Set<UUID> pendingRemovals = new LinkedHashSet<>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
 
     public FloodgateStorage() {
-        queryService = QueryService.getInstance();
-        createTable();
-        queryService.subscribeDataClearEvent(this::recreateTable);
+        this(QueryService.getInstance(), FloodgateExecutor.planAsyncPool());
+    }
+
+    /**
+     * @param queryService Plan's database
+     * @param planAsync    Plan's async pool, the blocking work of joins runs there unless the own threads are enabled
+     */
+    FloodgateStorage(QueryService queryService, Executor planAsync) {
+        this.queryService = queryService;
+        sqlite = queryService.getDBType().equalsIgnoreCase("SQLITE");
+        cache = new FloodgateCache<>(FloodgateSettings.getCacheSize(), FloodgateSettings.getCacheTtl());
+        fingerprints = new ConcurrentHashMap<>();
+        dictionary = new FloodgateDictionary(queryService, sqlite);
+        aggregates = new FloodgateAggregates(queryService, dictionary);
+        knownPlayers = new FloodgateUUIDSet();
+        metrics = new FloodgateMetrics();
+        breaker = new FloodgateCircuitBreaker(
+                FloodgateSettings.getBreakerSlowCall(),
+                FloodgateSettings.getBreakerOpenDuration(),
+                FloodgateSettings.getBreakerFailureRate(),
+                FloodgateSettings.getBreakerWindow()
+        );
+        writeStatements = new FloodgateUpsert(sqlite, false);
+        currentWriteStatements = new FloodgateUpsert(sqlite, true);
+        upsertSupported = !sqlite;
+        scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "Plan Floodgate Extension");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Work that is still waiting when the extension closes is done by close() right away
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        asyncExecutor = new FloodgateExecutor(metrics, planAsync);
+        joinLog = new FloodgateJoinLog(queryService, scheduler, asyncExecutor);
+        locales = new FloodgateLocales(queryService, sqlite, dictionary, scheduler, asyncExecutor);
+        List<Future<?>> tablesCreated = createTables();
+        queryService.subscribeDataClearEvent(this::clearData);
         queryService.subscribeToPlayerRemoveEvent(this::removePlayer);
+        // Done off-thread, so that registering the extension does not wait for it
+        scheduler.execute(() -> {
+            if (!awaitAll(tablesCreated)) return; // Lookups keep going to the database
+            if (sqlite) upsertSupported = FloodgateUpsert.supportsUpsert(getSQLiteVersion());
+            FloodgateIndexes indexes = new FloodgateIndexes(queryService, sqlite);
+            boolean updatedColumn = indexes.addMissingColumns();
+            boolean dictionaryColumns = indexes.addDictionaryColumns();
+            if (dictionaryColumns) dictionary.setAvailable(true);
+            currentColumns = updatedColumn && dictionaryColumns;
+            locales.fillIfEmpty();
+            loadKnownPlayers();
+            preloadRecentPlayers();
+            indexes.createMissingIndexes();
+            indexes.checkQueryPlans(currentColumns ? currentWriteStatements : writeStatements);
+            new FloodgateTransfer(this).startRequested();
+            // Only one Plan server uses a SQLite database, nobody else changes the rows
+            if (updatedColumn && !sqlite) new FloodgateChangePoller(queryService, this).start(scheduler);
+            if (dictionaryColumns) new FloodgateDictionaryMigration(queryService, sqlite).start(scheduler);
+        });
+    }
+
+    private static boolean awaitAll(List<Future<?>> futures) {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private String getSQLiteVersion() {
+        try {
+            return queryService.query("SELECT sqlite_version()", statement -> {
+                try (ResultSet set = statement.executeQuery()) {
+                    return set.next() ? set.getString(1) : null;
+                }
+            });
+        } catch (RuntimeException e) {
+            return null; // Writes keep using update and insert
+        }
+    }
+
+    /**
+     * Load the UUIDs of every stored row, a page at a time.
+     * <p>
+     * Rows with a malformed uuid are skipped. If a page fails, the known players stay unloaded and lookups keep
+     * going to the database.
+     */
+    private void loadKnownPlayers() {
+        String rowId = sqlite ? "rowid" : "id";
+        String sql = "SELECT uuid, " + rowId + " FROM plan_platforms " +
+                "WHERE " + rowId + " > ? ORDER BY " + rowId + " LIMIT ?";
+
+        long after = Long.MIN_VALUE;
+        while (true) {
+            long pageAfter = after;
+            int[] rows = new int[1];
+            Long lastRowId;
+            try {
+                lastRowId = queryService.query(sql, statement -> {
+                    statement.setLong(1, pageAfter);
+                    statement.setInt(2, KNOWN_PLAYERS_PAGE_SIZE);
+                    Long last = null;
+                    try (ResultSet set = statement.executeQuery()) {
+                        while (set.next()) {
+                            rows[0]++;
+                            last = set.getLong(2);
+                            addKnownPlayer(set.getString(1));
+                        }
+                    }
+                    return last;
+                });
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Floodgate extension: loading the stored players failed", e);
+                return;
+            }
+            if (lastRowId == null || rows[0] < KNOWN_PLAYERS_PAGE_SIZE) break;
+            after = lastRowId;
+        }
+        knownPlayersLoaded = true;
     }
 
-    private void createTable() {
-        String dbType = queryService.getDBType();
-        boolean sqlite = dbType.equalsIgnoreCase("SQLITE");
+    private void addKnownPlayer(String playerUUID) {
+        try {
+            knownPlayers.add(UUID.fromString(playerUUID));
+        } catch (IllegalArgumentException | NullPointerException malformed) {
+            LOGGER.warning("Floodgate extension: skipped a stored row with the malformed uuid '" + playerUUID + "'");
+        }
+    }
+
+    /**
+     * Load the most recently added rows into the cache, a page at a time.
+     * <p>
+     * Rows that are not loaded yet are read from the database on demand as usual.
+     */
+    private void preloadRecentPlayers() {
+        int limit = Math.min(FloodgateSettings.getPreloadSize(), FloodgateSettings.getCacheSize());
+        int pageSize = Math.max(1, FloodgateSettings.getPreloadPageSize());
+        String rowId = sqlite ? "p.rowid" : "p.id";
+        String sql = selectPlayers(rowId, dictionary.isAvailable()) +
+                " WHERE " + rowId + " < ? ORDER BY " + rowId + " DESC LIMIT ?";
+
+        long before = Long.MAX_VALUE;
+        int loaded = 0;
+        while (loaded < limit) {
+            long generation = cache.getGeneration();
+            long pageBefore = before;
+            int pageLimit = Math.min(pageSize, limit - loaded);
+            List<FloodgatePlayerData> page = new ArrayList<>(pageLimit);
+            int[] rows = new int[1];
+            Long lastRowId;
+            try {
+                lastRowId = queryService.query(sql, statement -> {
+                    statement.setLong(1, pageBefore);
+                    statement.setInt(2, pageLimit);
+                    Long last = null;
+                    try (ResultSet set = statement.executeQuery()) {
+                        while (set.next()) {
+                            rows[0]++;
+                            last = set.getLong(8);
+                            try {
+                                page.add(readRow(UUID.fromString(set.getString(1)), set, 2));
+                            } catch (IllegalArgumentException | NullPointerException malformedUUID) {
+                                // Skipped, it was reported when loading the known players
+                            }
+                        }
+                    }
+                    return last;
+                });
+            } catch (RuntimeException e) {
+                return; // The rest is read on demand
+            }
+            for (FloodgatePlayerData row : page) {
+                cache.putIfNotInvalidated(row.getPlayerUUID(), Optional.of(row), generation);
+            }
+            loaded += rows[0];
+            if (lastRowId == null || rows[0] < pageLimit) return;
+            before = lastRowId;
+        }
+    }
 
+    private Future<?> createTable() {
         String sql = "CREATE TABLE IF NOT EXISTS plan_platforms (" +
                 "id int " + (sqlite ? "PRIMARY KEY" : "NOT NULL AUTO_INCREMENT") + ',' +
                 "uuid varchar(36) NOT NULL UNIQUE," +
@@ -55,113 +291,687 @@ public class FloodgateStorage {
                 "javaUsername VARCHAR(16) NOT NULL," +
                 "linkedPlayer VARCHAR(16) NULL," +
                 "languageCode VARCHAR(8) NOT NULL," +
-                "version VARCHAR(16) NOT NULL" +
+                "version VARCHAR(16) NOT NULL," +
+                "updated bigint NOT NULL DEFAULT 0," +
+                "languageId int NOT NULL DEFAULT 0," +
+                "versionId int NOT NULL DEFAULT 0" +
                 (sqlite ? "" : ",PRIMARY KEY (id)") +
                 ")";
 
-        queryService.execute(sql, PreparedStatement::execute);
+        return queryService.execute(sql, PreparedStatement::execute);
     }
 
-    private void dropTable() {
-        queryService.execute("DROP TABLE IF EXISTS plan_platforms", PreparedStatement::execute);
+    private List<Future<?>> createTables() {
+        List<Future<?>> created = new ArrayList<>();
+        created.add(createTable());
+        created.addAll(dictionary.createTables());
+        created.addAll(joinLog.createTables(sqlite));
+        created.add(locales.createTable());
+        return created;
+    }
+
+    private void clearData() {
+        clearMemory();
+        // One DELETE keeps the table in place, readers see either all rows or none.
+        Future<?> deleted = queryService.execute("DELETE FROM plan_platforms", statement -> {
+            long start = System.nanoTime();
+            statement.execute();
+            metrics.record(FloodgateMetrics.Operation.CLEAR, start);
+        });
+        joinLog.clear();
+        locales.clear();
+        // Again once the delete is done, in case rows were loaded while it was waiting for its turn
+        toCompletableFuture(deleted, asyncExecutor).whenComplete((result, failure) -> clearMemory());
     }
 
-    private void recreateTable() {
-        createTable();
-        dropTable();
+    private void clearMemory() {
+        cache.invalidateAll();
+        fingerprints.clear();
+        aggregates.clear();
+        knownPlayers.clear();
     }
 
     public void storePlayer(UUID playerUUID, DeviceOs platform, String bedrockUsername, String javaUsername,
                             String linkedJavaPlayer, String languageCode, String version) throws ExecutionException {
-        String update = "UPDATE plan_platforms SET " +
-                "platform = ?, " +
-                "javaUsername = ?, " +
-                "linkedPlayer = ?, " +
-                "languageCode = ?, " +
-                "version = ? " +
-                "WHERE uuid = ? " +
-                "OR bedrockUsername = ?";
-        String insert = "INSERT INTO plan_platforms (" +
-                "platform, javaUsername, linkedPlayer, " +
-                "languageCode, version, uuid, bedrockUsername" +
-                ") VALUES (?, ?, ?, ?, ?, ?, ?)";
-
-        QueryService.ThrowingConsumer<PreparedStatement> dataSetter = preparedStatement -> {
-            preparedStatement.setInt(1, platform.ordinal());
-            preparedStatement.setString(2, javaUsername);
-            preparedStatement.setString(3, linkedJavaPlayer);
-            preparedStatement.setString(4, languageCode);
-            preparedStatement.setString(5, version);
-            preparedStatement.setString(6, playerUUID.toString());
-            preparedStatement.setString(7, bedrockUsername);
-        };
-
-        AtomicBoolean updated = new AtomicBoolean(false);
+        storePlayers(Collections.singletonList(new FloodgatePlayerData(
+                playerUUID, platform, bedrockUsername, javaUsername, linkedJavaPlayer, languageCode, version
+        )));
+    }
+
+    /**
+     * Store many players as one JDBC batch inside one transaction.
+     *
+     * @param players Rows to store, at most one per UUID
+     * @throws ExecutionException If the batch failed
+     */
+    public void storePlayers(Collection<FloodgatePlayerData> players) throws ExecutionException {
         try {
-            queryService.execute(update, statement -> {
-                dataSetter.accept(statement);
-                updated.set(statement.executeUpdate() > 0);
-            }).get(); // Wait
-            if (!updated.get()) {
-                queryService.execute(insert, statement -> {
-                    dataSetter.accept(statement);
-                    statement.execute();
-                });
-            }
+            storePlayersAsync(players).get();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
     }
 
-    private void removePlayer(UUID playerUUID) {
-        queryService.execute(
-                "DELETE FROM plan_platforms WHERE uuid=?",
-                statement -> {
-                    statement.setString(1, playerUUID.toString());
-                    statement.execute();
+    /**
+     * Store many players as one JDBC batch inside one transaction, without waiting for it.
+     *
+     * @param players Rows to store, at most one per UUID
+     * @return Future that completes when the rows have been written, or exceptionally if the batch failed
+     */
+    public CompletableFuture<Void> storePlayersAsync(Collection<FloodgatePlayerData> players) {
+        if (players.isEmpty()) return CompletableFuture.completedFuture(null);
+        long start = System.nanoTime();
+        for (FloodgatePlayerData player : players) {
+            writing.add(player.getPlayerUUID());
+        }
+        // Filled by the transaction before it writes, read once it has completed
+        Map<UUID, Optional<FloodgatePlayerData>> previousRows = new HashMap<>();
+        Future<?> execution;
+        try {
+            // Not refused by the breaker, the caller was already allowed to write
+            execution = upsert(players, previousRows);
+        } catch (RuntimeException e) {
+            breaker.onFailure();
+            for (FloodgatePlayerData player : players) {
+                fingerprints.remove(player.getPlayerUUID());
+                writing.remove(player.getPlayerUUID());
+            }
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return toCompletableFuture(execution, asyncExecutor).whenComplete((result, failure) -> {
+            if (failure == null) {
+                breaker.onSuccess(start);
+            } else {
+                breaker.onFailure();
+            }
+            for (FloodgatePlayerData player : players) {
+                UUID playerUUID = player.getPlayerUUID();
+                Optional<FloodgatePlayerData> previousRow = failure == null ? previousRows.get(playerUUID) : Optional.empty();
+                UUID storedUUID = previousRow.map(FloodgatePlayerData::getPlayerUUID).orElse(playerUUID);
+                if (failure == null && storedUUID.equals(playerUUID)) {
+                    fingerprints.put(playerUUID, player.getFingerprint());
+                    knownPlayers.add(playerUUID);
+                } else {
+                    // Also when the write went to the row of another uuid that had the same bedrockUsername
+                    fingerprints.remove(storedUUID);
+                    fingerprints.remove(playerUUID);
+                    cache.invalidate(storedUUID);
                 }
-        );
+                if (failure == null) {
+                    aggregates.update(previousRow, player);
+                    locales.update(previousRow, player);
+                }
+                // Invalidated after the write, so that the rows are not loaded into cache before they exist
+                cache.invalidate(playerUUID);
+                writing.remove(playerUUID);
+            }
+            metrics.record(FloodgateMetrics.Operation.STORE, start);
+        }).thenApply(result -> null);
     }
 
-    public DeviceOs getPlatform(UUID playerUUID) {
-        String sql = "SELECT platform FROM plan_platforms WHERE uuid=?";
+    /**
+     * Read the stored rows of players that are about to be written, in the transaction that writes them.
+     * <p>
+     * A player without a row of their own updates the row that has their bedrockUsername, if there is one, so that
+     * row is returned for them. On MySQL the rows stay locked until the write commits, so another server can not
+     * change them in between.
+     *
+     * @param connection   Connection of the write transaction
+     * @param players      Rows that are going to be written
+     * @param previousRows Filled with the row that each write replaces by UUID of the written player, empty if the
+     *                     write adds a row
+     * @throws SQLException If a read fails
+     */
+    private void readPreviousRows(Connection connection, Collection<FloodgatePlayerData> players,
+                                  Map<UUID, Optional<FloodgatePlayerData>> previousRows) throws SQLException {
+        List<FloodgatePlayerData> lookups = new ArrayList<>(players);
+        for (FloodgatePlayerData player : lookups) {
+            previousRows.put(player.getPlayerUUID(), Optional.empty());
+        }
+        for (int from = 0; from < lookups.size(); from += READ_CHUNK_SIZE) {
+            List<FloodgatePlayerData> chunk = lookups.subList(from, Math.min(lookups.size(), from + READ_CHUNK_SIZE));
+            List<FloodgatePlayerData> rows = loadPlayers(connection, chunk);
+            Map<String, UUID> byBedrockUsername = sqlite ? new HashMap<>() : new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (FloodgatePlayerData player : chunk) {
+                byBedrockUsername.put(player.getBedrockUsername(), player.getPlayerUUID());
+            }
+            // Rows of the players themselves first, the uuid conflict is the one that is updated
+            for (FloodgatePlayerData row : rows) {
+                if (previousRows.containsKey(row.getPlayerUUID())) {
+                    previousRows.put(row.getPlayerUUID(), Optional.of(row));
+                }
+            }
+            for (FloodgatePlayerData row : rows) {
+                UUID writtenBy = byBedrockUsername.get(row.getBedrockUsername());
+                if (writtenBy != null && !previousRows.get(writtenBy).isPresent()) {
+                    previousRows.put(writtenBy, Optional.of(row));
+                }
+            }
+        }
+    }
 
-        return queryService.query(sql, statement -> {
-            statement.setString(1, playerUUID.toString());
+    private List<FloodgatePlayerData> loadPlayers(Connection connection, List<FloodgatePlayerData> players) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(selectPlayersIn(players.size()))) {
+            int size = players.size();
+            for (int i = 0; i < size; i++) {
+                FloodgatePlayerData player = players.get(i);
+                statement.setString(i + 1, player.getPlayerUUID().toString());
+                statement.setString(size + i + 1, player.getBedrockUsername());
+            }
+            List<FloodgatePlayerData> found = new ArrayList<>(size);
             try (ResultSet set = statement.executeQuery()) {
-                return set.next() ? DeviceOs.fromId(set.getInt("platform")) : null;
+                while (set.next()) {
+                    found.add(readRow(UUID.fromString(set.getString(1)), set, 2));
+                }
             }
-        });
+            return found;
+        }
+    }
+
+    /**
+     * @param amount Amount of players, at most {@link #READ_CHUNK_SIZE}
+     * @return SELECT of the rows that have the uuids or bedrockUsernames of the players, uuids bound first
+     */
+    private String selectPlayersIn(int amount) {
+        String sql = selectPlayersIn[amount];
+        if (sql == null) {
+            String in = placeholders(amount);
+            // Without the dictionary: the rows keep their own values, and only plan_platforms rows are locked
+            sql = "SELECT p.uuid, " + playerColumns(false) + " FROM " + FloodgateDictionary.tables(false) +
+                    " WHERE p.uuid IN (" + in + ") OR p.bedrockUsername IN (" + in + ')' +
+                    (sqlite ? "" : " FOR UPDATE");
+            // Strings are immutable, a race only builds the same SQL twice
+            selectPlayersIn[amount] = sql;
+        }
+        return sql;
     }
 
-    private String getStringFromTable(UUID playerUUID, String data) {
-        String sql = "SELECT " + data + " FROM plan_platforms WHERE uuid=?";
+    /**
+     * @param players      Rows to write
+     * @param previousRows Filled with the rows that the write replaces, see
+     *                     {@link #readPreviousRows(Connection, Collection, Map)}, null to not read them
+     * @return Future of the write transaction
+     */
+    private CompletableFuture<?> upsert(Collection<FloodgatePlayerData> players,
+                                        Map<UUID, Optional<FloodgatePlayerData>> previousRows) {
+        boolean current = currentColumns;
+        FloodgateUpsert statements = current ? currentWriteStatements : writeStatements;
+        FloodgateDictionary.Ids ids = current ? dictionary.newIds() : null;
+        Future<?> execution;
+        if (upsertSupported) {
+            execution = queryService.execute(statements.getUpsertSql(), statement -> {
+                if (previousRows != null) readPreviousRows(statement.getConnection(), players, previousRows);
+                statements.upsert(statement, players, ids);
+            });
+        } else {
+            execution = queryService.execute(statements.getUpdateSql(), statement -> {
+                if (previousRows != null) readPreviousRows(statement.getConnection(), players, previousRows);
+                statements.updateOrInsert(statement, players, ids);
+            });
+        }
+        CompletableFuture<?> written = toCompletableFuture(execution, asyncExecutor);
+        if (ids != null) written.thenRun(ids::committed);
+        return written;
+    }
 
-        return queryService.query(sql, statement -> {
-            statement.setString(1, playerUUID.toString());
-            try (ResultSet set = statement.executeQuery()) {
-                return set.next() ? set.getString(data) : null;
+    // Read by index in this order, see readRow
+    private static String playerColumns(boolean dictionary) {
+        return "p.platform, p.bedrockUsername, p.javaUsername, p.linkedPlayer, " +
+                FloodgateDictionary.languageCode(dictionary) + ", " + FloodgateDictionary.version(dictionary);
+    }
+
+    private static String selectPlayer(boolean dictionary) {
+        return "SELECT " + playerColumns(dictionary) + " FROM " + FloodgateDictionary.tables(dictionary) +
+                " WHERE p.uuid=?";
+    }
+
+    /**
+     * @param extraColumns Columns read after the uuid and the columns of {@link #readRow(UUID, ResultSet, int)}
+     * @param dictionary   Value of {@link FloodgateDictionary#isAvailable()}
+     * @return SELECT of plan_platforms as p, without a WHERE clause
+     */
+    static String selectPlayers(String extraColumns, boolean dictionary) {
+        return "SELECT p.uuid, " + playerColumns(dictionary) + ", " + extraColumns +
+                " FROM " + FloodgateDictionary.tables(dictionary);
+    }
+
+    /**
+     * Store a chunk of imported rows, without reading the previous rows first.
+     * <p>
+     * The aggregates are reloaded afterwards, instead of being updated row by row.
+     *
+     * @param players Rows to store
+     * @throws ExecutionException If the batch failed
+     */
+    void importPlayers(List<FloodgatePlayerData> players) throws ExecutionException {
+        try {
+            upsert(players, null).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            for (FloodgatePlayerData player : players) {
+                fingerprints.remove(player.getPlayerUUID());
+                cache.invalidate(player.getPlayerUUID());
             }
-        });
+            aggregates.invalidate();
+        }
+        for (FloodgatePlayerData player : players) {
+            knownPlayers.add(player.getPlayerUUID());
+        }
+    }
+
+    /**
+     * Read every stored row in insertion order, a page at a time.
+     *
+     * @param pageSize Rows read per query
+     * @param consumer Called with each row, on the calling thread
+     * @throws IOException If the consumer fails
+     */
+    void forEachPlayer(int pageSize, FloodgateTransfer.RowConsumer consumer) throws IOException {
+        String rowId = sqlite ? "p.rowid" : "p.id";
+        String sql = selectPlayers(rowId, dictionary.isAvailable()) +
+                " WHERE " + rowId + " > ? ORDER BY " + rowId + " LIMIT ?";
+
+        long after = Long.MIN_VALUE;
+        List<FloodgatePlayerData> page = new ArrayList<>(pageSize);
+        int[] rowsRead = new int[1];
+        while (true) {
+            long pageAfter = after;
+            page.clear();
+            rowsRead[0] = 0;
+            Long lastRowId = queryService.query(sql, statement -> {
+                statement.setLong(1, pageAfter);
+                statement.setInt(2, pageSize);
+                Long last = null;
+                try (ResultSet set = statement.executeQuery()) {
+                    while (set.next()) {
+                        rowsRead[0]++;
+                        last = set.getLong(8);
+                        String playerUUID = set.getString(1);
+                        try {
+                            page.add(readRow(UUID.fromString(playerUUID), set, 2));
+                        } catch (IllegalArgumentException | NullPointerException malformed) {
+                            LOGGER.warning("Floodgate extension: skipped a stored row with the malformed uuid '" + playerUUID + "'");
+                        }
+                    }
+                }
+                return last;
+            });
+            for (FloodgatePlayerData row : page) {
+                consumer.accept(row);
+            }
+            if (lastRowId == null || rowsRead[0] < pageSize) return;
+            after = lastRowId;
+        }
+    }
+
+    /**
+     * @param future Future returned by {@link QueryService#execute}
+     * @param waitOn Executor that waits for the future, if it is not a CompletableFuture already
+     * @return CompletableFuture of the execution
+     */
+    static CompletableFuture<?> toCompletableFuture(Future<?> future, Executor waitOn) {
+        // Plan completes its transactions with CompletableFutures, the fallback waits on a Plan async thread.
+        if (future instanceof CompletableFuture) return (CompletableFuture<?>) future;
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
+                } catch (ExecutionException e) {
+                    throw new CompletionException(e.getCause());
+                }
+            }, waitOn);
+        } catch (RejectedExecutionException busy) {
+            // The result can not be waited for, handled like a failure so that the rows are not assumed written
+            CompletableFuture<?> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(busy);
+            return rejected;
+        }
+    }
+
+    private void removePlayer(UUID playerUUID) {
+        cache.invalidate(playerUUID);
+        fingerprints.remove(playerUUID);
+        knownPlayers.remove(playerUUID);
+        synchronized (pendingRemovals) {
+            pendingRemovals.add(playerUUID);
+            if (pendingRemovals.size() == 1) {
+                // Removals come in bursts when Plan removes old players, they are deleted together after a moment.
+                try {
+                    scheduler.schedule(this::deleteRemovedPlayers, REMOVAL_DELAY_MS, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (RejectedExecutionException closedAlready) {
+                    // Deleted right away
+                }
+            } else {
+                return;
+            }
+        }
+        deleteRemovedPlayers();
+    }
+
+    private void deleteRemovedPlayers() {
+        List<UUID> removed;
+        synchronized (pendingRemovals) {
+            removed = new ArrayList<>(pendingRemovals);
+            pendingRemovals.clear();
+        }
+        if (removed.isEmpty()) return;
+
+        for (int from = 0; from < removed.size(); from += REMOVAL_CHUNK_SIZE) {
+            List<UUID> chunk = removed.subList(from, Math.min(removed.size(), from + REMOVAL_CHUNK_SIZE));
+            Future<?> deleted = queryService.execute(
+                    "DELETE FROM plan_platforms WHERE uuid IN (" + placeholders(chunk.size()) + ')',
+                    statement -> {
+                        long start = System.nanoTime();
+                        locales.subtractRemoved(statement.getConnection(), chunk);
+                        setUUIDs(statement, chunk);
+                        statement.execute();
+                        metrics.record(FloodgateMetrics.Operation.REMOVE, start);
+                    }
+            );
+            // Counts are reloaded instead of looking up each removed row, once the delete has committed
+            toCompletableFuture(deleted, asyncExecutor).whenComplete((result, failure) -> aggregates.invalidate());
+            joinLog.removePlayers(chunk);
+        }
+    }
+
+    static String placeholders(int amount) {
+        StringBuilder placeholders = new StringBuilder(amount * 3);
+        for (int i = 0; i < amount; i++) {
+            if (i > 0) placeholders.append(", ");
+            placeholders.append('?');
+        }
+        return placeholders.toString();
+    }
+
+    static void setUUIDs(PreparedStatement statement, List<UUID> playerUUIDs) throws SQLException {
+        for (int i = 0; i < playerUUIDs.size(); i++) {
+            statement.setString(i + 1, playerUUIDs.get(i).toString());
+        }
+    }
+
+    /**
+     * Check if the stored row of the player already holds the given data.
+     * <p>
+     * Fingerprints of rows are loaded lazily on the first join of each player.
+     *
+     * @param data Data of a joined player
+     * @return true if storing the data would not change anything
+     */
+    public boolean isUnchanged(FloodgatePlayerData data) {
+        UUID playerUUID = data.getPlayerUUID();
+        Long stored = fingerprints.get(playerUUID);
+        if (stored == null) {
+            Optional<FloodgatePlayerData> row;
+            try {
+                row = getPlayer(playerUUID);
+            } catch (NotReadyException databaseFailing) {
+                return false; // Queued, and written once the database recovers
+            }
+            if (!row.isPresent()) return false;
+            Long loaded = row.get().getFingerprint();
+            stored = fingerprints.putIfAbsent(playerUUID, loaded);
+            if (stored == null) stored = loaded;
+        }
+        return stored == data.getFingerprint();
+    }
+
+    /**
+     * Get the stored row of a player, served from cache when possible.
+     *
+     * @param playerUUID UUID of the player
+     * @return the row, or empty if the player has no Floodgate data stored
+     * @throws NotReadyException If the row is not cached and the database is failing, Plan then skips the call
+     */
+    public Optional<FloodgatePlayerData> getPlayer(UUID playerUUID) {
+        if (!mayHaveData(playerUUID)) return Optional.empty();
+        Optional<FloodgatePlayerData> cached = cache.getIfPresent(playerUUID);
+        if (cached != null) return cached;
+        // While the database is failing, the previously shown values are kept instead of showing no data
+        if (!breaker.allowRequest()) throw new NotReadyException();
+        return cache.get(playerUUID, this::loadPlayer);
+    }
+
+    /**
+     * Load the row of a player from the database, ignoring what this node has cached about it.
+     * <p>
+     * Used when another node may have written the row.
+     *
+     * @param playerUUID UUID of the player
+     * @return the row, or empty if the player has no Floodgate data stored
+     * @throws NotReadyException If the database is failing
+     */
+    public Optional<FloodgatePlayerData> reloadPlayer(UUID playerUUID) {
+        if (!breaker.allowRequest()) throw new NotReadyException();
+        cache.invalidate(playerUUID);
+        Optional<FloodgatePlayerData> row = loadPlayer(playerUUID);
+        if (row.isPresent()) {
+            knownPlayers.add(playerUUID);
+            fingerprints.put(playerUUID, row.get().getFingerprint());
+            cache.put(playerUUID, row);
+        } else {
+            fingerprints.remove(playerUUID);
+        }
+        return row;
+    }
+
+    /**
+     * Get the stored row of a player without blocking the calling thread.
+     *
+     * @param playerUUID UUID of the player
+     * @return Future of the row, already completed if it was known or cached
+     */
+    public CompletableFuture<Optional<FloodgatePlayerData>> getPlayerAsync(UUID playerUUID) {
+        if (!mayHaveData(playerUUID)) return CompletableFuture.completedFuture(Optional.empty());
+        Optional<FloodgatePlayerData> cached = cache.getIfPresent(playerUUID);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        try {
+            return CompletableFuture.supplyAsync(() -> getPlayer(playerUUID), asyncExecutor);
+        } catch (RejectedExecutionException busy) {
+            CompletableFuture<Optional<FloodgatePlayerData>> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(busy);
+            return rejected;
+        }
+    }
+
+    /**
+     * Check if the player might have a stored row, without going to the database.
+     *
+     * @param playerUUID UUID of the player
+     * @return false if the player is known to have no row, true if they have one or the known players are still loading
+     */
+    public boolean mayHaveData(UUID playerUUID) {
+        return !knownPlayersLoaded || knownPlayers.contains(playerUUID);
+    }
+
+    /**
+     * Check if the player has a stored row, from the known players once they are loaded and from the row before that.
+     *
+     * @param playerUUID UUID of the player
+     * @return true if the player has Floodgate data stored
+     * @throws NotReadyException If it is not known and the database is failing, Plan then skips the call
+     */
+    public boolean hasPlayer(UUID playerUUID) {
+        if (!mayHaveData(playerUUID)) return false;
+        if (knownPlayersLoaded) return true;
+        // The whole row is loaded, Plan asks for the values of the player right after this.
+        return getPlayer(playerUUID).isPresent();
+    }
+
+    private Optional<FloodgatePlayerData> loadPlayer(UUID playerUUID) {
+        long start = System.nanoTime();
+        FloodgatePlayerData data;
+        try {
+            data = queryService.query(dictionary.isAvailable() ? SELECT_PLAYER : LEGACY_SELECT_PLAYER, statement -> {
+                statement.setString(1, playerUUID.toString());
+                try (ResultSet set = statement.executeQuery()) {
+                    return set.next() ? readRow(playerUUID, set, 1) : null;
+                }
+            });
+        } catch (RuntimeException e) {
+            breaker.onFailure();
+            throw e;
+        }
+        breaker.onSuccess(start);
+        metrics.record(FloodgateMetrics.Operation.READ, start);
+        return Optional.ofNullable(data);
+    }
+
+    /**
+     * Take in a row that was found changed in the database, possibly by another server.
+     * <p>
+     * The cached row is replaced if there is one, rows that are not cached stay out of the cache.
+     *
+     * @param row Row as it is stored now
+     */
+    void applyChange(FloodgatePlayerData row) {
+        UUID playerUUID = row.getPlayerUUID();
+        // Rows written by this server are handled when the write completes
+        if (writing.contains(playerUUID)) return;
+        Long known = fingerprints.get(playerUUID);
+        if (known != null && known == row.getFingerprint()) return;
+
+        boolean wasKnown = !knownPlayersLoaded || knownPlayers.contains(playerUUID);
+        Optional<FloodgatePlayerData> previous = cache.replaceIfPresent(playerUUID, Optional.of(row));
+        fingerprints.put(playerUUID, row.getFingerprint());
+        knownPlayers.add(playerUUID);
+        if (previous != null) {
+            aggregates.update(previous, row);
+        } else if (!wasKnown) {
+            aggregates.update(Optional.empty(), row);
+        } else {
+            aggregates.invalidate(); // The previous values of the row are not known
+        }
+    }
+
+    static FloodgatePlayerData readRow(UUID playerUUID, ResultSet set, int firstColumn) throws SQLException {
+        return new FloodgatePlayerData(
+                playerUUID,
+                DeviceOs.fromId(set.getInt(firstColumn)),
+                set.getString(firstColumn + 1),
+                set.getString(firstColumn + 2),
+                set.getString(firstColumn + 3),
+                set.getString(firstColumn + 4),
+                set.getString(firstColumn + 5)
+        );
+    }
+
+    /**
+     * Finish the pending background work and stop the threads of the extension.
+     * <p>
+     * Called when Plan disables, after the queued joins have been written and before Plan closes its database.
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        try {
+            scheduler.execute(this::deleteRemovedPlayers);
+        } catch (RejectedExecutionException alreadyShutDown) {
+            // Nothing left to do
+        }
+        joinLog.flush();
+        locales.flush();
+        scheduler.shutdown();
+        asyncExecutor.shutdown();
+        try {
+            scheduler.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Single thread for the background work of the extension, such as flushing queued joins.
+     *
+     * @return the scheduler
+     */
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Executor for the blocking database work of joins.
+     *
+     * @return the executor
+     */
+    FloodgateExecutor getExecutor() {
+        return asyncExecutor;
+    }
+
+    boolean isDictionaryAvailable() {
+        return dictionary.isAvailable();
+    }
+
+    FloodgateDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public FloodgateAggregates getAggregates() {
+        return aggregates;
+    }
+
+    public FloodgateJoinLog getJoinLog() {
+        return joinLog;
+    }
+
+    public FloodgateCircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    public FloodgateLocales getLocales() {
+        return locales;
+    }
+
+    public FloodgateMetrics getMetrics() {
+        return metrics;
+    }
+
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    // Without Optional.map, so that cached lookups allocate nothing
+    private FloodgatePlayerData getRow(UUID playerUUID) {
+        return getPlayer(playerUUID).orElse(null);
+    }
+
+    public DeviceOs getPlatform(UUID playerUUID) {
+        FloodgatePlayerData row = getRow(playerUUID);
+        return row != null ? row.getPlatform() : null;
     }
 
     public String getBedrockUsername(UUID playerUUID) {
-        return getStringFromTable(playerUUID, "bedrockUsername");
+        FloodgatePlayerData row = getRow(playerUUID);
+        return row != null ? row.getBedrockUsername() : null;
     }
 
     public String getJavaUsername(UUID playerUUID) {
-        return getStringFromTable(playerUUID, "javaUsername");
+        FloodgatePlayerData row = getRow(playerUUID);
+        return row != null ? row.getJavaUsername() : null;
     }
 
     public String getLinkedPlayer(UUID playerUUID) {
-        return getStringFromTable(playerUUID, "linkedPlayer");
+        FloodgatePlayerData row = getRow(playerUUID);
+        return row != null ? row.getLinkedPlayer() : null;
     }
 
     public String getLanguageCode(UUID playerUUID) {
-        return getStringFromTable(playerUUID, "languageCode");
+        FloodgatePlayerData row = getRow(playerUUID);
+        return row != null ? row.getLanguageCode() : null;
     }
 
     public String getVersion(UUID playerUUID) {
-        return getStringFromTable(playerUUID, "version");
+        FloodgatePlayerData row = getRow(playerUUID);
+        return row != null ? row.getVersion() : null;
     }
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exports and imports plan_platforms as tab separated lines, for moving the data between databases.
+ * <p>
+ * Started with -Dplan.floodgate.export=file or -Dplan.floodgate.import=file, on a thread of its own. Both stream a
+ * chunk of rows at a time, so the size of the table does not matter. Imported rows replace rows with the same uuid or
+ * bedrockUsername.
+ * <p>
+ * Each file is only used once, so leaving the properties in place does not repeat the transfer on every start:
+ * an existing export file is not overwritten, and an imported file is renamed to end with ".imported".
+ */
+public class FloodgateTransfer {
+
+    private static final Logger LOGGER = Logger.getLogger(FloodgateTransfer.class.getName());
+    private static final String HEADER = "# plan_platforms 1";
+    private static final String NULL = "\\N";
+    private static final String IMPORTED_SUFFIX = ".imported";
+
+    interface RowConsumer {
+        void accept(FloodgatePlayerData row) throws IOException;
+    }
+
+    private final FloodgateStorage storage;
+
+    public FloodgateTransfer(FloodgateStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Start the export and import given with system properties on a thread of their own, if there are any.
+     */
+    public void startRequested() {
+        if (FloodgateSettings.getExportFile() == null && FloodgateSettings.getImportFile() == null) return;
+        // Not on the extension's scheduler, a large transfer would hold up the flushes and the change polls
+        Thread thread = new Thread(this::runRequested, "Plan Floodgate Extension Transfer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run the export and import given with system properties, export first.
+     */
+    public void runRequested() {
+        String exportFile = FloodgateSettings.getExportFile();
+        if (exportFile != null) {
+            Path file = Paths.get(exportFile);
+            if (Files.exists(file)) {
+                LOGGER.info("Floodgate extension: " + exportFile + " exists already, delete it to export again");
+            } else {
+                try {
+                    long rows = exportTo(file);
+                    LOGGER.info("Floodgate extension: exported " + rows + " players to " + exportFile);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Floodgate extension: export to " + exportFile + " failed", e);
+                }
+            }
+        }
+        String importFile = FloodgateSettings.getImportFile();
+        if (importFile != null) {
+            Path file = Paths.get(importFile);
+            if (Files.notExists(file)) {
+                LOGGER.info("Floodgate extension: " + importFile + " does not exist, or was imported already");
+                return;
+            }
+            try {
+                long rows = importFrom(file);
+                Path imported = file.resolveSibling(file.getFileName() + IMPORTED_SUFFIX);
+                Files.move(file, imported, StandardCopyOption.REPLACE_EXISTING);
+                LOGGER.info("Floodgate extension: imported " + rows + " players from " + importFile +
+                        ", the file was renamed to " + imported.getFileName());
+            } catch (IOException | ExecutionException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Floodgate extension: import from " + importFile + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Write every stored row to a file.
+     * <p>
+     * The rows are written to a temporary file next to it first, so the file only exists once it is complete.
+     *
+     * @param file File to write, replaced if it exists
+     * @return Amount of rows written
+     * @throws IOException If writing fails
+     */
+    public long exportTo(Path file) throws IOException {
+        long[] rows = {0L};
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        try (BufferedWriter writer = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            storage.forEachPlayer(Math.max(1, FloodgateSettings.getTransferChunkSize()), row -> {
+                writeRow(writer, row);
+                rows[0]++;
+            });
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING);
+        return rows[0];
+    }
+
+    /**
+     * Store every row of a file written by {@link #exportTo(Path)}.
+     *
+     * @param file File to read
+     * @return Amount of rows stored
+     * @throws IOException        If reading fails or the file is not an export
+     * @throws ExecutionException If storing a chunk fails, the chunks before it stay stored
+     */
+    public long importFrom(Path file) throws IOException, ExecutionException {
+        int chunkSize = Math.max(1, FloodgateSettings.getTransferChunkSize());
+        long rows = 0L;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Not a plan_platforms export: " + file);
+            }
+            List<FloodgatePlayerData> chunk = new ArrayList<>(chunkSize);
+            int lineNumber = 1;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) continue;
+                chunk.add(readRow(line, lineNumber));
+                if (chunk.size() >= chunkSize) {
+                    storage.importPlayers(chunk);
+                    rows += chunk.size();
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                storage.importPlayers(chunk);
+                rows += chunk.size();
+            }
+        }
+        // The previous rows of imported players are not read, so the languages are counted again
+        storage.getLocales().recount();
+        return rows;
+    }
+
+    private void writeRow(Writer writer, FloodgatePlayerData row) throws IOException {
+        writer.write(row.getPlayerUUID().toString());
+        writer.write('\t');
+        writer.write(Integer.toString(row.getPlatform().ordinal()));
+        writeField(writer, row.getBedrockUsername());
+        writeField(writer, row.getJavaUsername());
+        writeField(writer, row.getLinkedPlayer());
+        writeField(writer, row.getLanguageCode());
+        writeField(writer, row.getVersion());
+        writer.write('\n');
+    }
+
+    private void writeField(Writer writer, String value) throws IOException {
+        writer.write('\t');
+        if (value == null) {
+            writer.write(NULL);
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+
+    private FloodgatePlayerData readRow(String line, int lineNumber) throws IOException {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 7) {
+            throw new IOException("Expected 7 fields on line " + lineNumber + ", got " + fields.length);
+        }
+        try {
+            return new FloodgatePlayerData(
+                    UUID.fromString(fields[0]),
+                    DeviceOs.fromId(Integer.parseInt(fields[1])),
+                    readField(fields[2]),
+                    readField(fields[3]),
+                    readField(fields[4]),
+                    readField(fields[5]),
+                    readField(fields[6])
+            );
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid row on line " + lineNumber + ": " + e.getMessage(), e);
+        }
+    }
+
+    private String readField(String field) {
+        if (NULL.equals(field)) return null;
+        if (field.indexOf('\\') == -1) return field;
+        StringBuilder value = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char escaped = field.charAt(++i);
+                switch (escaped) {
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Compact set of UUIDs stored as pairs of primitive longs (open addressing, linear probing).
+ * <p>
+ * Takes 16 bytes per slot instead of a UUID object and a map node per entry. Thread safe.
+ */
+public class FloodgateUUIDSet {
+
+    private static final int MIN_CAPACITY = 64;
+
+    // A slot is empty when both halves are 0, the nil UUID is tracked separately.
+    private long[] mostBits;
+    private long[] leastBits;
+    private boolean containsNil;
+    private int size;
+
+    public FloodgateUUIDSet() {
+        mostBits = new long[MIN_CAPACITY];
+        leastBits = new long[MIN_CAPACITY];
+    }
+
+    private static int hash(long most, long least) {
+        long hash = most * 0x9E3779B97F4A7C15L ^ least;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+
+    private static boolean isNil(long most, long least) {
+        return most == 0L && least == 0L;
+    }
+
+    private int indexOf(long most, long least) {
+        int mask = mostBits.length - 1;
+        int index = hash(most, least) & mask;
+        while (!isNil(mostBits[index], leastBits[index])) {
+            if (mostBits[index] == most && leastBits[index] == least) return index;
+            index = (index + 1) & mask;
+        }
+        return -1 - index; // Free slot where the UUID would go
+    }
+
+    public synchronized boolean contains(UUID uuid) {
+        long most = uuid.getMostSignificantBits();
+        long least = uuid.getLeastSignificantBits();
+        if (isNil(most, least)) return containsNil;
+        return indexOf(most, least) >= 0;
+    }
+
+    public synchronized boolean add(UUID uuid) {
+        long most = uuid.getMostSignificantBits();
+        long least = uuid.getLeastSignificantBits();
+        if (isNil(most, least)) {
+            boolean added = !containsNil;
+            containsNil = true;
+            return added;
+        }
+        int index = indexOf(most, least);
+        if (index >= 0) return false;
+
+        index = -1 - index;
+        mostBits[index] = most;
+        leastBits[index] = least;
+        if (++size * 2 > mostBits.length) resize(mostBits.length * 2);
+        return true;
+    }
+
+    public synchronized boolean remove(UUID uuid) {
+        long most = uuid.getMostSignificantBits();
+        long least = uuid.getLeastSignificantBits();
+        if (isNil(most, least)) {
+            boolean removed = containsNil;
+            containsNil = false;
+            return removed;
+        }
+        int hole = indexOf(most, least);
+        if (hole < 0) return false;
+
+        // Shift following entries back so that no lookup stops early at the freed slot.
+        int mask = mostBits.length - 1;
+        int index = (hole + 1) & mask;
+        while (!isNil(mostBits[index], leastBits[index])) {
+            int ideal = hash(mostBits[index], leastBits[index]) & mask;
+            if (((index - ideal) & mask) >= ((index - hole) & mask)) {
+                mostBits[hole] = mostBits[index];
+                leastBits[hole] = leastBits[index];
+                hole = index;
+            }
+            index = (index + 1) & mask;
+        }
+        mostBits[hole] = 0L;
+        leastBits[hole] = 0L;
+        size--;
+        return true;
+    }
+
+    public synchronized void clear() {
+        if (mostBits.length > MIN_CAPACITY) {
+            mostBits = new long[MIN_CAPACITY];
+            leastBits = new long[MIN_CAPACITY];
+        } else {
+            Arrays.fill(mostBits, 0L);
+            Arrays.fill(leastBits, 0L);
+        }
+        containsNil = false;
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size + (containsNil ? 1 : 0);
+    }
+
+    private void resize(int capacity) {
+        long[] oldMost = mostBits;
+        long[] oldLeast = leastBits;
+        mostBits = new long[capacity];
+        leastBits = new long[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldMost.length; i++) {
+            if (isNil(oldMost[i], oldLeast[i])) continue;
+            int index = hash(oldMost[i], oldLeast[i]) & mask;
+            while (!isNil(mostBits[index], leastBits[index])) {
+                index = (index + 1) & mask;
+            }
+            mostBits[index] = oldMost[i];
+            leastBits[index] = oldLeast[i];
+        }
+    }
+}
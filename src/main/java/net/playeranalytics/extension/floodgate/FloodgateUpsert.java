@@ -0,0 +1,219 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * Statements that write rows of plan_platforms, keyed by uuid or bedrockUsername.
+ * <p>
+ * Rows are written with one upsert where the database has one that handles both unique columns. SQLite only has
+ * that since 3.35, older versions update by uuid, then by bedrockUsername, and insert the rows that matched neither,
+ * in the same transaction.
+ * <p>
+ * The updated column is set from the database's clock, so that servers with different clocks that share the
+ * database write comparable values. The version and language code are also written as ids of
+ * {@link FloodgateDictionary}.
+ */
+final class FloodgateUpsert {
+
+    private static final String SQLITE_NOW = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+    private static final String MYSQL_NOW = "FLOOR(UNIX_TIMESTAMP(NOW(3)) * 1000.0)";
+
+    private final String upsertSql;
+    private final String updateSql;
+    private final String updateByNameSql;
+    private final String insertSql;
+
+    /**
+     * @param sqlite         Is the database SQLite
+     * @param currentColumns Write the updated, languageId and versionId columns, false if the table does not have
+     *                       them
+     */
+    FloodgateUpsert(boolean sqlite, boolean currentColumns) {
+        String now = currentTimeMillis(sqlite);
+        insertSql = "INSERT INTO plan_platforms (" +
+                "platform, javaUsername, linkedPlayer, " +
+                "languageCode, version, uuid, bedrockUsername" +
+                (currentColumns
+                        ? ", languageId, versionId, updated) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, " + now + ")"
+                        : ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+        String update = "UPDATE plan_platforms SET " +
+                "platform = ?, " +
+                "javaUsername = ?, " +
+                "linkedPlayer = ?, " +
+                "languageCode = ?, " +
+                "version = ?" +
+                (currentColumns ? ", languageId = ?, versionId = ?, updated = " + now : "");
+        // Two statements instead of "uuid = ? OR bedrockUsername = ?", so that each uses the index of its column
+        updateSql = update + " WHERE uuid = ?";
+        updateByNameSql = update + " WHERE bedrockUsername = ?";
+
+        // Conflicting rows (same uuid or same bedrockUsername) keep their uuid and bedrockUsername,
+        // like the updates do.
+        if (sqlite) {
+            String set = " DO UPDATE SET " +
+                    "platform = excluded.platform, " +
+                    "javaUsername = excluded.javaUsername, " +
+                    "linkedPlayer = excluded.linkedPlayer, " +
+                    "languageCode = excluded.languageCode, " +
+                    "version = excluded.version" +
+                    (currentColumns ? ", languageId = excluded.languageId, versionId = excluded.versionId, " +
+                            "updated = excluded.updated" : "");
+            upsertSql = insertSql +
+                    " ON CONFLICT(uuid)" + set +
+                    " ON CONFLICT(bedrockUsername)" + set;
+        } else {
+            upsertSql = insertSql + " ON DUPLICATE KEY UPDATE " +
+                    "platform = VALUES(platform), " +
+                    "javaUsername = VALUES(javaUsername), " +
+                    "linkedPlayer = VALUES(linkedPlayer), " +
+                    "languageCode = VALUES(languageCode), " +
+                    "version = VALUES(version)" +
+                    (currentColumns ? ", languageId = VALUES(languageId), versionId = VALUES(versionId), " +
+                            "updated = VALUES(updated)" : "");
+        }
+    }
+
+    /**
+     * @param sqlite Is the database SQLite
+     * @return SQL expression of the database's current time in epoch milliseconds
+     */
+    static String currentTimeMillis(boolean sqlite) {
+        return sqlite ? SQLITE_NOW : MYSQL_NOW;
+    }
+
+    /**
+     * @param sqliteVersion Result of sqlite_version()
+     * @return true if the SQLite version supports an upsert with several conflict targets (3.35.0 or newer)
+     */
+    static boolean supportsUpsert(String sqliteVersion) {
+        if (sqliteVersion == null) return false;
+        String[] parts = sqliteVersion.trim().split("\\.");
+        try {
+            int major = Integer.parseInt(parts[0]);
+            int minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            return major > 3 || major == 3 && minor >= 35;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    String getUpsertSql() {
+        return upsertSql;
+    }
+
+    String getUpdateSql() {
+        return updateSql;
+    }
+
+    String getUpdateByNameSql() {
+        return updateByNameSql;
+    }
+
+    /**
+     * Write the rows as one batch of upserts.
+     *
+     * @param statement Statement of {@link #getUpsertSql()}
+     * @param players   Rows to write
+     * @param ids       Dictionary ids of the transaction, null if the table has no id columns
+     * @throws SQLException If the batch fails
+     */
+    void upsert(PreparedStatement statement, Collection<FloodgatePlayerData> players, FloodgateDictionary.Ids ids) throws SQLException {
+        for (FloodgatePlayerData player : players) {
+            setInsertParameters(statement, player, ids);
+            statement.addBatch();
+        }
+        statement.executeBatch();
+    }
+
+    /**
+     * Write the rows by updating them, and inserting the ones that did not exist yet.
+     * <p>
+     * A row is updated by uuid, or if there is none by bedrockUsername, like the upsert picks its conflict.
+     *
+     * @param statement Statement of {@link #getUpdateSql()}, the other statements use its connection
+     * @param players   Rows to write
+     * @param ids       Dictionary ids of the transaction, null if the table has no id columns
+     * @throws SQLException If an update or the inserts fail
+     */
+    void updateOrInsert(PreparedStatement statement, Collection<FloodgatePlayerData> players, FloodgateDictionary.Ids ids) throws SQLException {
+        Connection connection = statement.getConnection();
+        try (PreparedStatement updateByName = connection.prepareStatement(updateByNameSql);
+             PreparedStatement insert = connection.prepareStatement(insertSql)) {
+            boolean inserts = false;
+            for (FloodgatePlayerData player : players) {
+                setUpdateParameters(statement, player, ids, player.getPlayerUUID().toString());
+                if (statement.executeUpdate() > 0) continue;
+                setUpdateParameters(updateByName, player, ids, player.getBedrockUsername());
+                if (updateByName.executeUpdate() > 0) continue;
+                setInsertParameters(insert, player, ids);
+                insert.addBatch();
+                inserts = true;
+            }
+            if (inserts) insert.executeBatch();
+        }
+    }
+
+    private void setInsertParameters(PreparedStatement statement, FloodgatePlayerData player, FloodgateDictionary.Ids ids) throws SQLException {
+        statement.setInt(1, player.getPlatform().ordinal());
+        statement.setString(2, player.getJavaUsername());
+        statement.setString(3, player.getLinkedPlayer());
+        statement.setString(6, player.getPlayerUUID().toString());
+        statement.setString(7, player.getBedrockUsername());
+        setDictionaryParameters(statement, player, ids, 4, 8);
+    }
+
+    private void setUpdateParameters(PreparedStatement statement, FloodgatePlayerData player, FloodgateDictionary.Ids ids,
+                                     String key) throws SQLException {
+        statement.setInt(1, player.getPlatform().ordinal());
+        statement.setString(2, player.getJavaUsername());
+        statement.setString(3, player.getLinkedPlayer());
+        int next = setDictionaryParameters(statement, player, ids, 4, 6);
+        statement.setString(next, key);
+    }
+
+    /**
+     * @return index of the parameter after the id parameters
+     */
+    private int setDictionaryParameters(PreparedStatement statement, FloodgatePlayerData player, FloodgateDictionary.Ids ids,
+                                        int valuesAt, int idsAt) throws SQLException {
+        if (ids == null) {
+            statement.setString(valuesAt, player.getLanguageCode());
+            statement.setString(valuesAt + 1, player.getVersion());
+            return idsAt;
+        }
+        Connection connection = statement.getConnection();
+        int languageId = ids.languageId(connection, player.getLanguageCode());
+        int versionId = ids.versionId(connection, player.getVersion());
+        statement.setString(valuesAt, player.getLanguageCode());
+        statement.setString(valuesAt + 1, player.getVersion());
+        statement.setInt(idsAt, languageId);
+        statement.setInt(idsAt + 1, versionId);
+        return idsAt + 2;
+    }
+}
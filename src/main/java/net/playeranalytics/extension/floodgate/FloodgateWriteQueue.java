@@ -0,0 +1,265 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind queue in front of {@link FloodgateStorage}.
+ * <p>
+ * Repeated joins of the same player are coalesced to the latest data, queued joins are written as one batch
+ * when the batch size is reached or the flush interval has passed, and updates of the flushed players are requested
+ * afterwards. Joins that would not change the stored row are skipped. When the queue (including batches that are
+ * still being written) is full, {@link #offer(FloodgateJoin)} waits for a flush.
+ * <p>
+ * While the circuit breaker of the storage is open, nothing is flushed and joins stay coalesced in the queue.
+ * Joins that do not fit are then dropped instead of waited for, as are joins that waited longer than a slow call.
+ * Batches that fail go back to the queue while the breaker is open, otherwise their rows are written one at a time.
+ */
+public class FloodgateWriteQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(FloodgateWriteQueue.class.getName());
+    private static final long CLOSE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private final FloodgateStorage storage;
+    private final FloodgateRefreshScheduler refreshes;
+    private final ScheduledExecutorService scheduler;
+
+    private final int batchSize;
+    private final int capacity;
+    private final long flushIntervalMs;
+    private final FloodgateMetrics metrics;
+    private final FloodgateCircuitBreaker breaker;
+
+    // Guarded by this
+    private final Map<UUID, FloodgateJoin> queued = new LinkedHashMap<>();
+    private int inFlight = 0;
+    private boolean flushScheduled = false;
+    private boolean closed = false;
+
+    public FloodgateWriteQueue(FloodgateStorage storage, FloodgateRefreshScheduler refreshes) {
+        this.storage = storage;
+        this.refreshes = refreshes;
+        this.scheduler = storage.getScheduler();
+        this.batchSize = Math.max(1, FloodgateSettings.getWriteBatchSize());
+        this.capacity = Math.max(batchSize, FloodgateSettings.getWriteQueueCapacity());
+        this.flushIntervalMs = FloodgateSettings.getWriteFlushInterval();
+        this.metrics = storage.getMetrics();
+        this.breaker = storage.getCircuitBreaker();
+        metrics.setQueueSize(this::size);
+    }
+
+    /**
+     * Queue a join to be written.
+     *
+     * @param join Join of a Bedrock player
+     * @throws InterruptedException If the thread was interrupted while waiting for space in the queue
+     */
+    public void offer(FloodgateJoin join) throws InterruptedException {
+        FloodgatePlayerData data = join.getData();
+        UUID playerUUID = data.getPlayerUUID();
+        boolean unchanged = storage.isUnchanged(data);
+        synchronized (this) {
+            // An older join that is still queued has to be replaced even if the new data matches the stored row.
+            if (unchanged && !queued.containsKey(playerUUID)) {
+                metrics.skippedJoin();
+                return;
+            }
+            long waitUntil = System.nanoTime() + breaker.getSlowCallNanos();
+            while (!closed && queued.size() + inFlight >= capacity && !queued.containsKey(playerUUID)) {
+                long remaining = waitUntil - System.nanoTime();
+                if (remaining <= 0 || breaker.isOpen()) {
+                    // Waiting would hold up the Plan thread that runs the join
+                    metrics.shedJoin();
+                    return;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            if (!closed) {
+                queued.put(playerUUID, join);
+                scheduleFlush();
+                return;
+            }
+        }
+        // Queue has been closed, write directly
+        synchronized (this) {
+            inFlight++;
+        }
+        write(Collections.singletonList(join));
+    }
+
+    private void scheduleFlush() {
+        try {
+            if (queued.size() >= batchSize && !breaker.isOpen()) {
+                scheduler.execute(this::flush);
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                scheduler.schedule(this::flush, flushIntervalMs, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException schedulerShutDown) {
+            flushScheduled = false;
+        }
+    }
+
+    private void flush() {
+        if (!breaker.allowRequest()) {
+            synchronized (this) {
+                flushScheduled = false;
+                if (!queued.isEmpty() && !closed) scheduleFlush(); // Tried again after the flush interval
+            }
+            return;
+        }
+        List<FloodgateJoin> batch = takeBatch();
+        if (!batch.isEmpty()) write(batch);
+    }
+
+    private synchronized List<FloodgateJoin> takeBatch() {
+        flushScheduled = false;
+        List<FloodgateJoin> batch = new ArrayList<>(Math.min(batchSize, queued.size()));
+        Iterator<FloodgateJoin> iterator = queued.values().iterator();
+        while (iterator.hasNext() && batch.size() < batchSize) {
+            batch.add(iterator.next());
+            iterator.remove();
+        }
+        inFlight += batch.size();
+        if (!queued.isEmpty() && !closed) scheduleFlush();
+        return batch;
+    }
+
+    private CompletableFuture<Void> write(List<FloodgateJoin> batch) {
+        return writeOrRetry(batch).whenComplete((result, failure) -> {
+            synchronized (this) {
+                inFlight -= batch.size();
+                notifyAll();
+            }
+        });
+    }
+
+    private CompletableFuture<Void> writeOrRetry(List<FloodgateJoin> batch) {
+        return store(batch)
+                .handle((result, failure) -> failure == null
+                        ? CompletableFuture.<Void>completedFuture(null)
+                        : retry(batch, failure))
+                .thenCompose(retried -> retried);
+    }
+
+    private CompletableFuture<Void> store(List<FloodgateJoin> batch) {
+        List<FloodgatePlayerData> players = new ArrayList<>(batch.size());
+        for (FloodgateJoin join : batch) {
+            players.add(join.getData());
+        }
+        CompletableFuture<Void> stored;
+        try {
+            stored = storage.storePlayersAsync(players);
+        } catch (RuntimeException e) {
+            stored = new CompletableFuture<>();
+            stored.completeExceptionally(e);
+        }
+        return stored.thenRun(() -> {
+            metrics.writtenJoins(players.size());
+            for (FloodgateJoin join : batch) {
+                metrics.record(FloodgateMetrics.Operation.JOIN_TO_STORED, join.getJoinedAt());
+                refreshes.request(join.getData().getPlayerUUID(), join.getPlayerName());
+            }
+        });
+    }
+
+    /**
+     * Handle a failed write: while the database is failing the joins go back to the queue, otherwise the rows of
+     * the batch are written one by one so that one bad row does not lose the others.
+     */
+    private CompletableFuture<Void> retry(List<FloodgateJoin> batch, Throwable failure) {
+        if (breaker.isOpen() && requeue(batch)) {
+            LOGGER.log(Level.WARNING, "Floodgate extension: writing " + batch.size() + " players failed, " +
+                    "they are written again once the database recovers", failure);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (batch.size() == 1) {
+            FloodgateJoin join = batch.get(0);
+            LOGGER.log(Level.WARNING, "Floodgate extension: writing the data of " + join.getPlayerName() +
+                    " (" + join.getData().getPlayerUUID() + ") failed", failure);
+            metrics.failedJoins(1);
+            return CompletableFuture.completedFuture(null);
+        }
+        LOGGER.log(Level.WARNING, "Floodgate extension: writing a batch of " + batch.size() + " players failed, " +
+                "writing them one by one", failure);
+        List<CompletableFuture<Void>> writes = new ArrayList<>(batch.size());
+        for (FloodgateJoin join : batch) {
+            writes.add(writeOrRetry(Collections.singletonList(join)));
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]));
+    }
+
+    private synchronized boolean requeue(List<FloodgateJoin> batch) {
+        if (closed) return false;
+        for (FloodgateJoin join : batch) {
+            // A newer join of the player that was queued meanwhile is kept
+            queued.putIfAbsent(join.getData().getPlayerUUID(), join);
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    public synchronized int size() {
+        return queued.size();
+    }
+
+    /**
+     * Stop accepting joins into the queue and write everything that is still queued.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        List<FloodgateJoin> batch;
+        while (!(batch = takeBatch()).isEmpty()) {
+            writes.add(write(batch));
+        }
+        try {
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]))
+                    .get(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ignored) {
+            // Ignore
+        }
+    }
+}
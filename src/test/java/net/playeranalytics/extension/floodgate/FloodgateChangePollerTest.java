@@ -0,0 +1,107 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class FloodgateChangePollerTest {
+
+    private static final UUID PLAYER = UUID.fromString("00000000-0009-0000-0000-000000000001");
+
+    private TestQueryService firstDatabase;
+    private TestQueryService secondDatabase;
+    private FloodgateStorage first;
+    private FloodgateStorage second;
+
+    @BeforeAll
+    static void pollOften() {
+        System.setProperty("plan.floodgate.sync.interval", "50");
+    }
+
+    @AfterAll
+    static void resetSettings() {
+        System.clearProperty("plan.floodgate.sync.interval");
+    }
+
+    @AfterEach
+    void closeDatabases() throws Exception {
+        if (first != null) first.close();
+        if (second != null) second.close();
+        if (firstDatabase != null) firstDatabase.close();
+        if (secondDatabase != null) secondDatabase.close();
+    }
+
+    @Test
+    void rowsWrittenByOneServerReachTheOther() throws Exception {
+        // Two connections to the same database, like two Plan servers sharing a MySQL database
+        String name = "poller" + UUID.randomUUID();
+        firstDatabase = TestQueryService.h2MySQL(name);
+        secondDatabase = TestQueryService.h2MySQL(name);
+        first = FloodgateStorageTest.startStorage(firstDatabase);
+        second = FloodgateStorageTest.startStorage(secondDatabase);
+
+        first.storePlayer(PLAYER, DeviceOs.GOOGLE, "Player", "Player", null, "en_US", "1.17.0");
+        // The second server learns of the new player from a poll, and caches the row
+        awaitLanguage(second, "en_US");
+
+        first.storePlayer(PLAYER, DeviceOs.GOOGLE, "Player", "Player", null, "fi_FI", "1.17.0");
+        awaitLanguage(second, "fi_FI");
+
+        // And back the other way
+        assertEquals("fi_FI", first.getPlayer(PLAYER).orElseThrow(AssertionError::new).getLanguageCode());
+        second.storePlayer(PLAYER, DeviceOs.GOOGLE, "Player", "Player", null, "de_DE", "1.17.0");
+        awaitLanguage(first, "de_DE");
+    }
+
+    private static void awaitLanguage(FloodgateStorage storage, String languageCode) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        String cached = null;
+        while (System.currentTimeMillis() < deadline) {
+            // Served from the cache once loaded, so only a polled change updates it
+            cached = storage.getPlayer(PLAYER).map(FloodgatePlayerData::getLanguageCode).orElse(null);
+            if (languageCode.equals(cached)) return;
+            Thread.sleep(20L);
+        }
+        assertEquals(languageCode, cached);
+    }
+
+    @Test
+    void sqliteIsNotPolled() throws Exception {
+        firstDatabase = TestQueryService.sqlite("jdbc:sqlite::memory:");
+        first = FloodgateStorageTest.startStorage(firstDatabase);
+        // The poller reads the latest update when it starts, during startup
+        for (String sql : firstDatabase.getQuerySql()) {
+            assertFalse(sql.contains("MAX(updated)"), sql);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import com.djrapitops.plan.extension.NotReadyException;
+import org.geysermc.floodgate.util.DeviceOs;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FloodgateCircuitBreakerTest {
+
+    private static final int WINDOW = 4;
+    private static final long OPEN_MS = 200L;
+
+    @TempDir
+    Path tempDir;
+    private TestQueryService database;
+    private FloodgateStorage storage;
+
+    @BeforeAll
+    static void smallWindow() {
+        System.setProperty("plan.floodgate.breaker.window", Integer.toString(WINDOW));
+        System.setProperty("plan.floodgate.breaker.open-duration", Long.toString(OPEN_MS));
+        // Opens once the whole window failed
+        System.setProperty("plan.floodgate.breaker.failure-rate", "100");
+    }
+
+    @AfterAll
+    static void resetSettings() {
+        System.clearProperty("plan.floodgate.breaker.window");
+        System.clearProperty("plan.floodgate.breaker.open-duration");
+        System.clearProperty("plan.floodgate.breaker.failure-rate");
+    }
+
+    @AfterEach
+    void closeDatabase() throws Exception {
+        if (storage != null) storage.close();
+        if (database != null) database.close();
+    }
+
+    private List<UUID> storeUncachedPlayers(int amount) throws Exception {
+        List<UUID> players = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            UUID playerUUID = UUID.randomUUID();
+            // Rows are not in the cache after they are written
+            storage.storePlayer(playerUUID, DeviceOs.GOOGLE, "Player" + i, "Player" + i, null, "en_US", "1.17.0");
+            players.add(playerUUID);
+        }
+        return players;
+    }
+
+    @Test
+    void failingDatabaseOpensBreakerAndLookupsAreNotReady() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        storage = FloodgateStorageTest.startStorage(database);
+        List<UUID> players = storeUncachedPlayers(WINDOW + 1);
+
+        database.failNext(WINDOW);
+        for (int i = 0; i < WINDOW; i++) {
+            UUID playerUUID = players.get(i);
+            IllegalStateException failure = assertThrows(IllegalStateException.class, () -> storage.getPlayer(playerUUID));
+            assertFalse(failure instanceof NotReadyException);
+        }
+        assertTrue(storage.getCircuitBreaker().isOpen());
+
+        // Refused without going to the database, Plan skips the call instead of showing no data
+        int queries = database.getQueries();
+        UUID uncached = players.get(WINDOW);
+        assertThrows(NotReadyException.class, () -> storage.getPlayer(uncached));
+        assertThrows(NotReadyException.class, () -> storage.reloadPlayer(uncached));
+        assertThrows(NotReadyException.class, () -> storage.getLanguageCode(uncached));
+        assertEquals(queries, database.getQueries());
+
+        // One trial call after the open duration closes the breaker again
+        Thread.sleep(OPEN_MS + 50L);
+        assertEquals("en_US", storage.getLanguageCode(uncached));
+        assertEquals(FloodgateCircuitBreaker.State.CLOSED, storage.getCircuitBreaker().getState());
+    }
+
+    @Test
+    void failedWritesAreQueuedWhileBreakerIsOpen() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        storage = FloodgateStorageTest.startStorage(database);
+        List<UUID> players = storeUncachedPlayers(WINDOW);
+
+        database.failNext(WINDOW);
+        for (UUID playerUUID : players) {
+            assertThrows(IllegalStateException.class, () -> storage.getPlayer(playerUUID));
+        }
+        assertTrue(storage.getCircuitBreaker().isOpen());
+
+        // The stored row is not known while the database is failing, so the join counts as changed
+        FloodgatePlayerData changed = new FloodgatePlayerData(players.get(0), DeviceOs.GOOGLE, "Player0", "Player0",
+                null, "fi_FI", "1.17.0");
+        assertFalse(storage.isUnchanged(changed));
+    }
+}
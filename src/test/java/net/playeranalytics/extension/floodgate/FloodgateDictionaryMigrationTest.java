@@ -0,0 +1,215 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FloodgateDictionaryMigrationTest {
+
+    private static final String[] LANGUAGES = {"en_US", "de_DE", "fi_FI"};
+    private static final String[] VERSIONS = {"1.17.0", "1.17.10"};
+
+    @TempDir
+    Path tempDir;
+    private TestQueryService database;
+    private FloodgateStorage storage;
+
+    @BeforeAll
+    static void smallChunks() {
+        System.setProperty("plan.floodgate.dictionary.migration-chunk-size", "1000");
+        System.setProperty("plan.floodgate.dictionary.migration-pause", "0");
+    }
+
+    @AfterAll
+    static void resetSettings() {
+        System.clearProperty("plan.floodgate.dictionary.migration-chunk-size");
+        System.clearProperty("plan.floodgate.dictionary.migration-pause");
+    }
+
+    @AfterEach
+    void closeDatabase() throws Exception {
+        if (storage != null) storage.close();
+        if (database != null) database.close();
+    }
+
+    @Test
+    void rowsOfOlderVersionsGetDictionaryIds() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        Connection connection = database.getConnection();
+        createOlderTable(connection);
+        List<UUID> players = new ArrayList<>();
+        // More than two chunks
+        for (int i = 0; i < 2500; i++) {
+            UUID playerUUID = UUID.randomUUID();
+            players.add(playerUUID);
+            insertInline(connection, playerUUID, "Player" + i, LANGUAGES[i % LANGUAGES.length], VERSIONS[i % VERSIONS.length]);
+        }
+
+        storage = FloodgateStorageTest.startStorage(database);
+        awaitFilled(connection);
+
+        assertEquals(0, countWithoutIds(connection));
+        synchronized (connection) {
+            assertEquals(0, FloodgateUpsertTest.countWithoutMatchingIds(connection));
+            // Nothing is taken out of the rows, older versions sharing the database still read them
+            assertEquals(players.size(), countInline(connection));
+        }
+        assertEquals(LANGUAGES.length, count(connection, "plan_platform_languages"));
+        assertEquals(VERSIONS.length, count(connection, "plan_platform_versions"));
+        for (int i = 0; i < players.size(); i += 100) {
+            FloodgatePlayerData row = storage.reloadPlayer(players.get(i)).orElseThrow(AssertionError::new);
+            assertEquals(LANGUAGES[i % LANGUAGES.length], row.getLanguageCode());
+            assertEquals(VERSIONS[i % VERSIONS.length], row.getVersion());
+        }
+
+        // A server with an older version changes the values of the row and not its ids, the values are read
+        try (PreparedStatement update = connection.prepareStatement(
+                "UPDATE plan_platforms SET languageCode = 'pt_BR', version = '1.18.0' WHERE uuid = ?")) {
+            update.setString(1, players.get(0).toString());
+            update.execute();
+        }
+        FloodgatePlayerData row = storage.reloadPlayer(players.get(0)).orElseThrow(AssertionError::new);
+        assertEquals("pt_BR", row.getLanguageCode());
+        assertEquals("1.18.0", row.getVersion());
+    }
+
+    @Test
+    void rowsAreReadWhileTheTableIsUpgraded() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        Connection connection = database.getConnection();
+        createOlderTable(connection);
+        UUID stored = UUID.randomUUID();
+        insertInline(connection, stored, "Stored", "en_US", "1.17.0");
+
+        // Startup waits for its tables to be created, the id columns are added after that
+        CountDownLatch release = new CountDownLatch(1);
+        database.holdTransactions(release);
+        storage = new FloodgateStorage(database.getService(), database.getAsyncPool());
+        UUID joined = UUID.randomUUID();
+        CompletableFuture<Void> written;
+        try {
+            FloodgatePlayerData row = storage.getPlayer(stored).orElseThrow(AssertionError::new);
+            assertEquals("en_US", row.getLanguageCode());
+            assertEquals("1.17.0", row.getVersion());
+            assertEquals(1L, storage.getAggregates().getPlayers());
+            written = storage.storePlayersAsync(Collections.singletonList(
+                    new FloodgatePlayerData(joined, DeviceOs.IOS, "Joined", "Joined", null, "de_DE", "1.17.10")));
+            assertEquals(FloodgateCircuitBreaker.State.CLOSED, storage.getCircuitBreaker().getState());
+        } finally {
+            release.countDown();
+        }
+        written.get(10, TimeUnit.SECONDS);
+        storage.getScheduler().submit(() -> null).get();
+
+        assertEquals("de_DE", storage.reloadPlayer(joined).map(FloodgatePlayerData::getLanguageCode).orElse(null));
+        assertEquals("1.17.0", storage.reloadPlayer(stored).map(FloodgatePlayerData::getVersion).orElse(null));
+    }
+
+    /**
+     * Create plan_platforms as the first version of the extension did, without the later columns.
+     */
+    private static void createOlderTable(Connection connection) throws SQLException {
+        try (PreparedStatement create = connection.prepareStatement("CREATE TABLE IF NOT EXISTS plan_platforms (" +
+                "id int PRIMARY KEY," +
+                "uuid varchar(36) NOT NULL UNIQUE," +
+                "platform int NOT NULL," +
+                "bedrockUsername VARCHAR(32) NOT NULL UNIQUE," +
+                "javaUsername VARCHAR(16) NOT NULL," +
+                "linkedPlayer VARCHAR(16) NULL," +
+                "languageCode VARCHAR(8) NOT NULL," +
+                "version VARCHAR(16) NOT NULL" +
+                ")")) {
+            create.execute();
+        }
+    }
+
+    private static void insertInline(Connection connection, UUID playerUUID, String name, String languageCode,
+                                     String version) throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO plan_platforms " +
+                "(uuid, platform, bedrockUsername, javaUsername, languageCode, version) VALUES (?, 1, ?, ?, ?, ?)")) {
+            insert.setString(1, playerUUID.toString());
+            insert.setString(2, name);
+            insert.setString(3, name);
+            insert.setString(4, languageCode);
+            insert.setString(5, version);
+            insert.execute();
+        }
+    }
+
+    private void awaitFilled(Connection connection) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (countWithoutIds(connection) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20L);
+        }
+        // The last chunk may still be committing its dictionary values
+        database.awaitTransactions();
+    }
+
+    private static int countWithoutIds(Connection connection) throws SQLException {
+        synchronized (connection) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT COUNT(*) FROM plan_platforms WHERE languageId = 0 OR versionId = 0");
+                 ResultSet set = statement.executeQuery()) {
+                return set.next() ? set.getInt(1) : -1;
+            }
+        }
+    }
+
+    private static int countInline(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT COUNT(*) FROM plan_platforms WHERE languageCode <> '' AND version <> ''");
+             ResultSet set = statement.executeQuery()) {
+            return set.next() ? set.getInt(1) : -1;
+        }
+    }
+
+    private static int count(Connection connection, String table) throws SQLException {
+        synchronized (connection) {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM " + table);
+                 ResultSet set = statement.executeQuery()) {
+                return set.next() ? set.getInt(1) : -1;
+            }
+        }
+    }
+}
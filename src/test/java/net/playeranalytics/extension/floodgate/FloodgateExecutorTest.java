@@ -0,0 +1,110 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FloodgateExecutorTest {
+
+    @BeforeAll
+    static void smallPool() {
+        System.setProperty("plan.floodgate.executor.concurrency", "1");
+        System.setProperty("plan.floodgate.executor.queue-capacity", "1");
+    }
+
+    @AfterEach
+    void useDefaultExecutor() {
+        System.clearProperty("plan.floodgate.executor.dedicated");
+    }
+
+    @AfterAll
+    static void resetSettings() {
+        System.clearProperty("plan.floodgate.executor.concurrency");
+        System.clearProperty("plan.floodgate.executor.queue-capacity");
+    }
+
+    @Test
+    void planPoolRunsTheTasksByDefault() {
+        FloodgateMetrics metrics = new FloodgateMetrics();
+        List<Runnable> given = new ArrayList<>();
+        FloodgateExecutor executor = new FloodgateExecutor(metrics, given::add);
+        // More than the limits of the own threads, Plan's pool has its own
+        for (int i = 0; i < 5; i++) {
+            executor.execute(() -> {
+            });
+        }
+        assertEquals(5, given.size());
+        assertEquals(0L, metrics.getShedTasks());
+        assertEquals("Plan async pool", executor.getDescription());
+    }
+
+    @Test
+    void overflowIsShedInsteadOfRunElsewhere() throws Exception {
+        System.setProperty("plan.floodgate.executor.dedicated", "true");
+        FloodgateMetrics metrics = new FloodgateMetrics();
+        List<Runnable> planPool = new ArrayList<>();
+        FloodgateExecutor executor = new FloodgateExecutor(metrics, planPool::add);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(2);
+        Runnable slowQuery = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ran.countDown();
+        };
+        try {
+            executor.execute(slowQuery); // Running
+            executor.execute(slowQuery); // Waiting
+            assertThrows(RejectedExecutionException.class, () -> executor.execute(slowQuery));
+            assertEquals(1L, metrics.getShedTasks());
+
+            release.countDown();
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+            // Room again once the tasks finished
+            CountDownLatch later = new CountDownLatch(1);
+            executor.execute(later::countDown);
+            assertTrue(later.await(5, TimeUnit.SECONDS));
+            assertEquals(1L, metrics.getShedTasks());
+            assertTrue(planPool.isEmpty());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+}
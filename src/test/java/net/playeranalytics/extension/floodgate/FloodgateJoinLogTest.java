@@ -0,0 +1,144 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class FloodgateJoinLogTest {
+
+    private static final long WINDOW_MS = 300L;
+
+    @TempDir
+    Path tempDir;
+    private final List<TestQueryService> databases = new ArrayList<>();
+    private final List<FloodgateStorage> storages = new ArrayList<>();
+
+    @BeforeAll
+    static void shortWindows() {
+        System.setProperty("plan.floodgate.role.window", Long.toString(WINDOW_MS));
+        System.setProperty("plan.floodgate.write.flush-interval", "50");
+    }
+
+    @AfterAll
+    static void resetSettings() {
+        System.clearProperty("plan.floodgate.role.window");
+        System.clearProperty("plan.floodgate.write.flush-interval");
+    }
+
+    @AfterEach
+    void closeDatabases() throws Exception {
+        for (FloodgateStorage storage : storages) storage.close();
+        for (TestQueryService database : databases) database.close();
+    }
+
+    private FloodgateStorage startNode() throws Exception {
+        // Every node has a connection of its own to the same database
+        TestQueryService database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        databases.add(database);
+        FloodgateStorage storage = FloodgateStorageTest.startStorage(database);
+        storages.add(storage);
+        return storage;
+    }
+
+    private static FloodgateJoin join(UUID playerUUID) {
+        return new FloodgateJoin(new FloodgatePlayerData(playerUUID, DeviceOs.GOOGLE, "Player", "Player", null,
+                "en_US", "1.17.0"), "Player", System.nanoTime());
+    }
+
+    private long countLoggedJoins() throws Exception {
+        for (TestQueryService database : databases) {
+            database.awaitTransactions();
+        }
+        try (PreparedStatement statement = databases.get(0).getConnection()
+                .prepareStatement("SELECT COUNT(*) FROM plan_platform_joins");
+             ResultSet set = statement.executeQuery()) {
+            set.next();
+            return set.getLong(1);
+        }
+    }
+
+    @Test
+    void joinSeenByProxyAndBackendIsLoggedOnce() throws Exception {
+        TestListener proxy = new TestListener(startNode(), true);
+        TestListener backend = new TestListener(startNode(), false);
+        UUID playerUUID = UUID.randomUUID();
+
+        proxy.storeJoin(join(playerUUID));
+        backend.storeJoin(join(playerUUID));
+        // The backend has decided once it found the join logged
+        FloodgateListenerTest.await(backend::hasSeenWriter);
+        assertEquals(1L, countLoggedJoins());
+
+        // Server switch behind the proxy, not logged by the backend now that it knows of the writer
+        backend.storeJoin(join(playerUUID));
+        assertEquals(1L, countLoggedJoins());
+    }
+
+    @Test
+    void backendWithoutWriterLogsItsJoins() throws Exception {
+        TestListener backend = new TestListener(startNode(), false);
+
+        backend.storeJoin(join(UUID.randomUUID()));
+        FloodgateListenerTest.await(() -> countLoggedJoins() == 1L);
+        assertFalse(backend.hasSeenWriter());
+    }
+
+    @Test
+    void failedAppendsAreCountedAsDropped() throws Exception {
+        FloodgateStorage storage = startNode();
+        FloodgateJoinLog joinLog = storage.getJoinLog();
+        joinLog.append(join(UUID.randomUUID()).getData(), System.currentTimeMillis());
+
+        databases.get(0).failNext(1);
+        joinLog.flush();
+        databases.get(0).awaitTransactions();
+
+        assertEquals(1L, joinLog.getDroppedJoins());
+        assertEquals(0L, countLoggedJoins());
+    }
+
+    @Test
+    void bufferedJoinsAreAppendedOnClose() throws Exception {
+        FloodgateStorage storage = startNode();
+        storage.getJoinLog().append(join(UUID.randomUUID()).getData(), System.currentTimeMillis());
+
+        storage.close();
+        assertEquals(1L, countLoggedJoins());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class FloodgateListenerTest {
+
+    private static final long WINDOW_MS = 300L;
+    private static final long TIMEOUT_MS = 10000L;
+
+    @TempDir
+    Path tempDir;
+    private final List<TestQueryService> databases = new ArrayList<>();
+    private final List<FloodgateStorage> storages = new ArrayList<>();
+
+    @BeforeAll
+    static void shortWindows() {
+        System.setProperty("plan.floodgate.role.window", Long.toString(WINDOW_MS));
+        System.setProperty("plan.floodgate.write.flush-interval", "50");
+    }
+
+    @AfterAll
+    static void resetSettings() {
+        System.clearProperty("plan.floodgate.role.window");
+        System.clearProperty("plan.floodgate.write.flush-interval");
+    }
+
+    @AfterEach
+    void closeDatabases() throws Exception {
+        for (FloodgateStorage storage : storages) storage.close();
+        for (TestQueryService database : databases) database.close();
+    }
+
+    private FloodgateStorage startNode() throws Exception {
+        // Every node has a connection of its own to the same database
+        TestQueryService database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        databases.add(database);
+        FloodgateStorage storage = FloodgateStorageTest.startStorage(database);
+        storages.add(storage);
+        return storage;
+    }
+
+    private static FloodgateJoin join(UUID playerUUID) {
+        return new FloodgateJoin(new FloodgatePlayerData(playerUUID, DeviceOs.GOOGLE, "Player", "Player", null,
+                "en_US", "1.17.0"), "Player", System.nanoTime());
+    }
+
+    /**
+     * Wait until the condition holds, instead of sleeping for a fixed time.
+     */
+    static void await(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) fail("The condition did not hold within " + TIMEOUT_MS + " ms");
+            Thread.sleep(10L);
+        }
+    }
+
+    interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    @Test
+    void serverWithoutProxySettingsOwnsWrites() {
+        assertFalse(FloodgateBukkitListener.isBehindProxy());
+    }
+
+    @Test
+    void standaloneServerWritesRightAway() throws Exception {
+        // Longer than the wait below, a join that waited for the window would not be written in time
+        System.setProperty("plan.floodgate.role.window", Long.toString(TIMEOUT_MS * 6));
+        try {
+            FloodgateStorage storage = startNode();
+            TestListener standalone = new TestListener(storage, true);
+
+            standalone.storeJoin(join(UUID.randomUUID()));
+            await(() -> storage.getMetrics().getWrittenJoins() == 1L);
+        } finally {
+            System.setProperty("plan.floodgate.role.window", Long.toString(WINDOW_MS));
+        }
+    }
+
+    @Test
+    void proxyWritesAndBackendsDoNot() throws Exception {
+        FloodgateStorage proxyStorage = startNode();
+        FloodgateStorage firstBackendStorage = startNode();
+        FloodgateStorage secondBackendStorage = startNode();
+        TestListener proxy = new TestListener(proxyStorage, true);
+        TestListener firstBackend = new TestListener(firstBackendStorage, false);
+        TestListener secondBackend = new TestListener(secondBackendStorage, false);
+        UUID playerUUID = UUID.randomUUID();
+
+        proxy.storeJoin(join(playerUUID));
+        firstBackend.storeJoin(join(playerUUID));
+        secondBackend.storeJoin(join(playerUUID));
+        // The backends have decided once they found the join written
+        await(() -> firstBackendStorage.getMetrics().getJoinsWrittenElsewhere() == 1L
+                && secondBackendStorage.getMetrics().getJoinsWrittenElsewhere() == 1L);
+
+        assertEquals(1L, proxyStorage.getMetrics().getWrittenJoins());
+        assertEquals(0L, firstBackendStorage.getMetrics().getWrittenJoins());
+        assertEquals(0L, secondBackendStorage.getMetrics().getWrittenJoins());
+        assertEquals(1, FloodgateUpsertTest.readRows(databases.get(0).getConnection()).size());
+    }
+
+    @Test
+    void backendWritesWhenNoWriterDid() throws Exception {
+        FloodgateStorage storage = startNode();
+        TestListener backend = new TestListener(storage, false);
+
+        backend.storeJoin(join(UUID.randomUUID()));
+        await(() -> storage.getMetrics().getWrittenJoins() == 1L);
+        assertEquals(0L, storage.getMetrics().getJoinsWrittenElsewhere());
+    }
+}
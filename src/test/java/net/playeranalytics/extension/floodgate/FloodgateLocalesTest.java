@@ -0,0 +1,115 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FloodgateLocalesTest {
+
+    private static final UUID FIRST = UUID.fromString("00000000-0009-0000-0000-000000000001");
+    private static final UUID SECOND = UUID.fromString("00000000-0009-0000-0000-000000000002");
+    private static final UUID THIRD = UUID.fromString("00000000-0009-0000-0000-000000000003");
+
+    @TempDir
+    Path tempDir;
+    private TestQueryService database;
+    private FloodgateStorage storage;
+
+    @AfterEach
+    void closeDatabase() throws Exception {
+        if (storage != null) storage.close();
+        if (database != null) database.close();
+    }
+
+    private Map<String, Long> flushAndGetLanguages() throws Exception {
+        storage.getLocales().flush();
+        database.awaitTransactions();
+        Map<String, Long> languages = new HashMap<>();
+        for (Map.Entry<String, Long> language : storage.getLocales().getLanguages()) {
+            languages.put(language.getKey(), language.getValue());
+        }
+        return languages;
+    }
+
+    @Test
+    void countsMatchRecount() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        storage = FloodgateStorageTest.startStorage(database);
+
+        storage.storePlayers(Arrays.asList(
+                new FloodgatePlayerData(FIRST, DeviceOs.GOOGLE, "First", "First", null, "en_US", "1.17.0"),
+                new FloodgatePlayerData(SECOND, DeviceOs.IOS, "Second", "Second", null, "de_DE", "1.17.0")
+        ));
+        storage.storePlayer(FIRST, DeviceOs.GOOGLE, "First", "First", null, "fi_FI", "1.17.0");
+        // Lands on the row of SECOND, which has the same bedrockUsername
+        storage.storePlayer(THIRD, DeviceOs.IOS, "Second", "Second", null, "fr_FR", "1.17.0");
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("fi_FI", 1L);
+        expected.put("fr_FR", 1L);
+        assertEquals(expected, flushAndGetLanguages());
+
+        storage.getLocales().recount();
+        assertEquals(expected, flushAndGetLanguages());
+    }
+
+    @Test
+    void failedFlushIsWrittenLater() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        storage = FloodgateStorageTest.startStorage(database);
+        storage.storePlayer(FIRST, DeviceOs.GOOGLE, "First", "First", null, "en_US", "1.17.0");
+
+        database.failNext(1);
+        storage.getLocales().flush();
+        database.awaitTransactions();
+
+        assertEquals(1L, flushAndGetLanguages().get("en_US"));
+    }
+
+    @Test
+    void pendingChangesAreWrittenOnClose() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        storage = FloodgateStorageTest.startStorage(database);
+        storage.storePlayer(FIRST, DeviceOs.GOOGLE, "First", "First", null, "en_US", "1.17.0");
+
+        storage.close();
+        database.awaitTransactions();
+
+        List<Map.Entry<String, Long>> languages = storage.getLocales().getLanguages();
+        assertEquals(1, languages.size());
+        assertEquals(1L, languages.get(0).getValue());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class FloodgateLookupTest {
+
+    private static final int PLAYERS = 100;
+    private static final int LOOKUPS = 200_000;
+
+    @TempDir
+    Path tempDir;
+    private TestQueryService database;
+    private FloodgateStorage storage;
+
+    @AfterEach
+    void closeDatabase() throws Exception {
+        if (storage != null) storage.close();
+        if (database != null) database.close();
+    }
+
+    @Test
+    void dataAvailableBeforeKnownPlayersLoadRunsOneQuery() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        Connection connection = database.getConnection();
+        FloodgateUpsertTest.createTables(connection, true);
+        UUID playerUUID = UUID.randomUUID();
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO plan_platforms " +
+                "(uuid, platform, bedrockUsername, javaUsername, languageCode, version) " +
+                "VALUES (?, 0, 'Player', 'Player', 'en_US', '1.17.0')")) {
+            insert.setString(1, playerUUID.toString());
+            insert.execute();
+        }
+
+        // The startup task waits for the tables, so the known players are not loaded during the lookups
+        CountDownLatch release = new CountDownLatch(1);
+        database.holdTransactions(release);
+        try {
+            storage = new FloodgateStorage(database.getService(), database.getAsyncPool());
+            int queries = database.getQueries();
+
+            assertTrue(storage.hasPlayer(playerUUID));
+            assertEquals("en_US", storage.getLanguageCode(playerUUID));
+            assertEquals("1.17.0", storage.getVersion(playerUUID));
+            assertEquals(queries + 1, database.getQueries());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void cachedLookupsDoNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        storage = FloodgateStorageTest.startStorage(database);
+        List<UUID> players = new ArrayList<>();
+        for (int i = 0; i < PLAYERS; i++) {
+            UUID playerUUID = UUID.randomUUID();
+            storage.storePlayer(playerUUID, DeviceOs.GOOGLE, "Player" + i, "Player" + i, null, "en_US", "1.17.0");
+            storage.getPlayer(playerUUID); // Cached
+            players.add(playerUUID);
+        }
+
+        long checksum = lookUp(players); // Warm up so that the JIT has compiled the lookups
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        checksum += lookUp(players);
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(checksum > 0);
+        double perLookup = (double) allocated / LOOKUPS;
+        assertTrue(perLookup < 16.0, "Allocated " + perLookup + " bytes per cached lookup");
+    }
+
+    private long lookUp(List<UUID> players) {
+        long checksum = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            UUID playerUUID = players.get(i % PLAYERS);
+            if (storage.hasPlayer(playerUUID)) checksum++;
+            checksum += storage.getLanguageCode(playerUUID).length();
+            checksum += storage.getPlatform(playerUUID).ordinal();
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FloodgateStorageTest {
+
+    private static final UUID FIRST = UUID.fromString("00000000-0009-0000-0000-000000000001");
+    private static final UUID SECOND = UUID.fromString("00000000-0009-0000-0000-000000000002");
+
+    @TempDir
+    Path tempDir;
+    private TestQueryService database;
+    private FloodgateStorage storage;
+
+    @AfterEach
+    void closeDatabase() throws Exception {
+        if (storage != null) storage.close();
+        if (database != null) database.close();
+    }
+
+    static FloodgateStorage startStorage(TestQueryService database) throws ExecutionException, InterruptedException {
+        FloodgateStorage storage = new FloodgateStorage(database.getService(), database.getAsyncPool());
+        // The startup task runs first on the single scheduler thread
+        storage.getScheduler().submit(() -> null).get();
+        return storage;
+    }
+
+    @Test
+    void storedRowsAreReadBack() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        storage = startStorage(database);
+
+        storage.storePlayers(Arrays.asList(
+                new FloodgatePlayerData(FIRST, DeviceOs.GOOGLE, "First", "First", null, "en_US", "1.17.0"),
+                new FloodgatePlayerData(SECOND, DeviceOs.IOS, "Second", "Second", null, "de_DE", "1.17.0")
+        ));
+        storage.storePlayer(FIRST, DeviceOs.GOOGLE, "First", "First", "Linked", "fi_FI", "1.17.10");
+        // Same bedrockUsername under another uuid updates the stored row
+        storage.storePlayer(UUID.randomUUID(), DeviceOs.IOS, "Second", "Renamed", null, "de_DE", "1.17.10");
+
+        FloodgatePlayerData first = storage.reloadPlayer(FIRST).orElseThrow(AssertionError::new);
+        assertEquals("Linked", first.getLinkedPlayer());
+        assertEquals("fi_FI", first.getLanguageCode());
+        assertEquals("1.17.10", first.getVersion());
+        FloodgatePlayerData second = storage.reloadPlayer(SECOND).orElseThrow(AssertionError::new);
+        assertEquals("Renamed", second.getJavaUsername());
+        assertEquals("1.17.10", second.getVersion());
+    }
+
+    @Test
+    void previousRowsOfBatchAreReadInTheWriteTransaction() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        storage = startStorage(database);
+        List<FloodgatePlayerData> players = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            players.add(new FloodgatePlayerData(UUID.randomUUID(), DeviceOs.GOOGLE, "Player" + i, "Player" + i,
+                    null, "en_US", "1.17.0"));
+        }
+        storage.storePlayers(players);
+
+        // All three previous rows are read in the transaction that writes the batch, not on the calling thread
+        List<FloodgatePlayerData> changed = new ArrayList<>();
+        for (FloodgatePlayerData player : players) {
+            changed.add(new FloodgatePlayerData(player.getPlayerUUID(), DeviceOs.GOOGLE, player.getBedrockUsername(),
+                    player.getJavaUsername(), null, "fi_FI", "1.17.0"));
+        }
+        int queries = database.getQueries();
+        storage.storePlayers(changed);
+        assertEquals(queries, database.getQueries());
+    }
+
+    @Test
+    void asyncLookupsRunOnPlanPool() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        storage = startStorage(database);
+        storage.storePlayer(FIRST, DeviceOs.GOOGLE, "First", "First", null, "en_US", "1.17.0");
+
+        int tasks = database.getAsyncTasks();
+        FloodgatePlayerData row = storage.getPlayerAsync(FIRST).get(5, TimeUnit.SECONDS).orElseThrow(AssertionError::new);
+        assertEquals("en_US", row.getLanguageCode());
+        assertEquals(tasks + 1, database.getAsyncTasks());
+        assertEquals("Plan async pool", storage.getExecutor().getDescription());
+    }
+
+    @Test
+    void removedPlayersLeaveTheCounts() throws Throwable {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        storage = startStorage(database);
+        storage.storePlayers(Arrays.asList(
+                new FloodgatePlayerData(FIRST, DeviceOs.GOOGLE, "First", "First", null, "en_US", "1.17.0"),
+                new FloodgatePlayerData(SECOND, DeviceOs.IOS, "Second", "Second", null, "de_DE", "1.17.0")
+        ));
+        assertEquals(2L, storage.getAggregates().getPlayers());
+
+        database.removePlayer(FIRST);
+        // Deleted after a short delay, the counts are reloaded once the delete has committed
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (storage.getAggregates().getPlayers() != 1L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20L);
+        }
+        assertEquals(1L, storage.getAggregates().getPlayers());
+        assertFalse(storage.reloadPlayer(FIRST).isPresent());
+    }
+
+    @Test
+    void knownPlayersLoadPastMalformedRows() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        Connection connection = database.getConnection();
+        try (PreparedStatement create = connection.prepareStatement(FloodgateUpsertTest.createTableSql(true))) {
+            create.execute();
+        }
+        List<UUID> stored = new ArrayList<>();
+        String insert = "INSERT INTO plan_platforms (uuid, platform, bedrockUsername, javaUsername, languageCode, version) " +
+                "VALUES (?, 0, ?, ?, 'en_US', '1.17.0')";
+        try (PreparedStatement statement = connection.prepareStatement(insert)) {
+            // More than one page, with a malformed row in the first one
+            for (int i = 0; i < 6000; i++) {
+                String playerUUID;
+                if (i == 10) {
+                    playerUUID = "not-a-uuid";
+                } else {
+                    UUID valid = UUID.randomUUID();
+                    stored.add(valid);
+                    playerUUID = valid.toString();
+                }
+                statement.setString(1, playerUUID);
+                statement.setString(2, "Player" + i);
+                statement.setString(3, "Player" + i);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+
+        storage = startStorage(database);
+
+        assertFalse(storage.mayHaveData(UUID.randomUUID()));
+        for (UUID playerUUID : stored) {
+            assertTrue(storage.mayHaveData(playerUUID));
+        }
+    }
+}
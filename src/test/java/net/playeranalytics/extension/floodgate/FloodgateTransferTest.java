@@ -0,0 +1,153 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FloodgateTransferTest {
+
+    @TempDir
+    Path tempDir;
+    private final List<TestQueryService> databases = new ArrayList<>();
+    private final List<FloodgateStorage> storages = new ArrayList<>();
+
+    @AfterEach
+    void closeDatabases() throws Exception {
+        for (FloodgateStorage storage : storages) storage.close();
+        for (TestQueryService database : databases) database.close();
+        System.clearProperty("plan.floodgate.export");
+        System.clearProperty("plan.floodgate.import");
+        System.clearProperty("plan.floodgate.transfer.chunk-size");
+    }
+
+    private FloodgateStorage startStorage(String name) throws Exception {
+        TestQueryService database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve(name));
+        databases.add(database);
+        FloodgateStorage storage = FloodgateStorageTest.startStorage(database);
+        storages.add(storage);
+        return storage;
+    }
+
+    @Test
+    void exportedRowsAreImportedUnchanged() throws Exception {
+        // Rows of several chunks
+        System.setProperty("plan.floodgate.transfer.chunk-size", "3");
+        FloodgateStorage source = startStorage("source.db");
+        List<FloodgatePlayerData> players = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            players.add(new FloodgatePlayerData(UUID.randomUUID(), DeviceOs.GOOGLE, "Player" + i, "Player" + i,
+                    i % 2 == 0 ? null : "Linked" + i, "en_US", "1.17." + i));
+        }
+        // Values that need escaping
+        players.add(new FloodgatePlayerData(UUID.randomUUID(), DeviceOs.IOS, "Tab\tName", "Back\\slash",
+                "\\N", "new\nline", "1.17.0"));
+        source.storePlayers(players);
+
+        Path file = tempDir.resolve("plan_platforms.tsv");
+        assertEquals(players.size(), new FloodgateTransfer(source).exportTo(file));
+
+        FloodgateStorage target = startStorage("target.db");
+        assertEquals(players.size(), new FloodgateTransfer(target).importFrom(file));
+
+        assertEquals(readRowsWithoutUpdated(0), readRowsWithoutUpdated(1));
+    }
+
+    private List<String> readRowsWithoutUpdated(int database) throws Exception {
+        List<String> rows = new ArrayList<>();
+        for (String row : FloodgateUpsertTest.readRows(databases.get(database).getConnection())) {
+            rows.add(row.substring(0, row.lastIndexOf('|')));
+        }
+        return rows;
+    }
+
+    @Test
+    void malformedRowsAreSkippedByTheExport() throws Exception {
+        System.setProperty("plan.floodgate.transfer.chunk-size", "3");
+        FloodgateStorage source = startStorage("source.db");
+        List<FloodgatePlayerData> players = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            players.add(new FloodgatePlayerData(UUID.randomUUID(), DeviceOs.GOOGLE, "Player" + i, "Player" + i,
+                    null, "en_US", "1.17.0"));
+        }
+        source.storePlayers(players);
+        // In the first chunk, which must not end the export early
+        try (Statement statement = databases.get(0).getConnection().createStatement()) {
+            statement.executeUpdate("UPDATE plan_platforms SET uuid = 'malformed' WHERE bedrockUsername = 'Player1'");
+        }
+
+        Path file = tempDir.resolve("plan_platforms.tsv");
+        assertEquals(players.size() - 1, new FloodgateTransfer(source).exportTo(file));
+        assertEquals(players.size(), Files.readAllLines(file).size());
+    }
+
+    @Test
+    void requestedTransferRunsOnce() throws Exception {
+        FloodgateStorage source = startStorage("source.db");
+        source.storePlayer(UUID.randomUUID(), DeviceOs.GOOGLE, "Player", "Player", null, "en_US", "1.17.0");
+        Path file = tempDir.resolve("plan_platforms.tsv");
+        new FloodgateTransfer(source).exportTo(file);
+
+        FloodgateStorage target = startStorage("target.db");
+        System.setProperty("plan.floodgate.import", file.toString());
+        new FloodgateTransfer(target).runRequested();
+
+        assertFalse(Files.exists(file));
+        assertTrue(Files.exists(tempDir.resolve("plan_platforms.tsv.imported")));
+        assertEquals(1, FloodgateUpsertTest.readRows(databases.get(1).getConnection()).size());
+
+        // Restarted with the property still set
+        new FloodgateTransfer(target).runRequested();
+        assertEquals(1, FloodgateUpsertTest.readRows(databases.get(1).getConnection()).size());
+    }
+
+    @Test
+    void existingExportIsNotOverwritten() throws Exception {
+        FloodgateStorage storage = startStorage("source.db");
+        storage.storePlayer(UUID.randomUUID(), DeviceOs.GOOGLE, "Player", "Player", null, "en_US", "1.17.0");
+        Path file = tempDir.resolve("plan_platforms.tsv");
+        System.setProperty("plan.floodgate.export", file.toString());
+
+        new FloodgateTransfer(storage).runRequested();
+        List<String> exported = Files.readAllLines(file);
+        assertEquals(2, exported.size());
+
+        storage.storePlayer(UUID.randomUUID(), DeviceOs.GOOGLE, "Other", "Other", null, "en_US", "1.17.0");
+        new FloodgateTransfer(storage).runRequested();
+        assertEquals(exported, Files.readAllLines(file));
+    }
+}
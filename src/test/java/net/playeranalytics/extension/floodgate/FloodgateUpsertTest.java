@@ -0,0 +1,247 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import org.geysermc.floodgate.util.DeviceOs;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class FloodgateUpsertTest {
+
+    private static final UUID FIRST = UUID.fromString("00000000-0009-0000-0000-000000000001");
+    private static final UUID SECOND = UUID.fromString("00000000-0009-0000-0000-000000000002");
+    private static final UUID THIRD = UUID.fromString("00000000-0009-0000-0000-000000000003");
+    private static final UUID RENAMED = UUID.fromString("00000000-0009-0000-0000-000000000004");
+
+    // Each step is written as one batch
+    private static final List<List<FloodgatePlayerData>> STEPS = Arrays.asList(
+            Arrays.asList(
+                    new FloodgatePlayerData(FIRST, DeviceOs.GOOGLE, "First", "First", null, "en_US", "1.17.0"),
+                    new FloodgatePlayerData(SECOND, DeviceOs.IOS, "Second", "Second", null, "de_DE", "1.17.0")
+            ),
+            Arrays.asList(
+                    // Changed row, linked null to value
+                    new FloodgatePlayerData(FIRST, DeviceOs.GOOGLE, "First", "First", "Linked", "fi_FI", "1.17.10"),
+                    new FloodgatePlayerData(THIRD, DeviceOs.UNKNOWN, "Third", "Third", null, "en_GB", "1.16.220")
+            ),
+            Collections.singletonList(
+                    // Same bedrockUsername under another uuid updates the existing row
+                    new FloodgatePlayerData(RENAMED, DeviceOs.GOOGLE, "Second", "Renamed", null, "fr_FR", "1.17.10")
+            ),
+            Collections.singletonList(
+                    // Unchanged row
+                    new FloodgatePlayerData(THIRD, DeviceOs.UNKNOWN, "Third", "Third", null, "en_GB", "1.16.220")
+            )
+    );
+
+    private static final List<String> EXPECTED = Arrays.asList(
+            FIRST + "|1|First|First|Linked|fi_FI|1.17.10",
+            SECOND + "|1|Second|Renamed|null|fr_FR|1.17.10",
+            THIRD + "|0|Third|Third|null|en_GB|1.16.220"
+    );
+
+    @Test
+    void sqliteVersionsWithUpsert() {
+        assertTrue(FloodgateUpsert.supportsUpsert("3.35.0"));
+        assertTrue(FloodgateUpsert.supportsUpsert("3.36.0"));
+        assertTrue(FloodgateUpsert.supportsUpsert("4.0"));
+        assertFalse(FloodgateUpsert.supportsUpsert("3.34.1"));
+        assertFalse(FloodgateUpsert.supportsUpsert("3.8.11.2"));
+        assertFalse(FloodgateUpsert.supportsUpsert("unknown"));
+        assertFalse(FloodgateUpsert.supportsUpsert(null));
+    }
+
+    @Test
+    void sqliteUpdateAndInsertWritesExpectedRows() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            assertEquals(EXPECTED, write(connection, true, false));
+        }
+    }
+
+    @Test
+    void sqliteUpsertMatchesUpdateAndInsert() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            assumeTrue(FloodgateUpsert.supportsUpsert(connection.getMetaData().getDatabaseProductVersion()));
+            assertEquals(EXPECTED, write(connection, true, true));
+        }
+    }
+
+    @Test
+    void mysqlUpdateAndInsertWritesExpectedRows() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:upsertOld;MODE=MySQL")) {
+            assertEquals(EXPECTED, write(connection, false, false));
+        }
+    }
+
+    @Test
+    void mysqlUpsertMatchesUpdateAndInsert() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:upsertNew;MODE=MySQL")) {
+            assertEquals(EXPECTED, write(connection, false, true));
+        }
+    }
+
+    @Test
+    void updatesUseTheIndexOfTheirColumn() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            createTables(connection, true);
+            FloodgateUpsert statements = new FloodgateUpsert(true, true);
+            for (String sql : Arrays.asList(statements.getUpdateSql(), statements.getUpdateByNameSql())) {
+                try (PreparedStatement statement = connection.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+                     ResultSet set = statement.executeQuery()) {
+                    assertTrue(set.next());
+                    String detail = set.getString("detail");
+                    assertTrue(detail.startsWith("SEARCH") && detail.contains("INDEX"), detail);
+                    assertFalse(set.next(), sql);
+                }
+            }
+        }
+    }
+
+    @Test
+    void versionsAndLanguageCodesAreStoredOnce() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            write(connection, true, false);
+            // The rows keep their own values, and the ids refer to the same values
+            assertEquals(0, countWithoutMatchingIds(connection));
+            // fi_FI, de_DE, en_US, en_GB, fr_FR and 1.17.0, 1.17.10, 1.16.220
+            assertEquals(5, count(connection, "plan_platform_languages"));
+            assertEquals(3, count(connection, "plan_platform_versions"));
+        }
+    }
+
+    /**
+     * @return Amount of rows that have no ids, or ids of other values than their own
+     */
+    static int countWithoutMatchingIds(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM plan_platforms p " +
+                "LEFT JOIN plan_platform_languages l ON l.id = p.languageId " +
+                "LEFT JOIN plan_platform_versions v ON v.id = p.versionId " +
+                "WHERE l.languageCode IS NULL OR l.languageCode <> p.languageCode " +
+                "OR v.version IS NULL OR v.version <> p.version");
+             ResultSet set = statement.executeQuery()) {
+            return set.next() ? set.getInt(1) : -1;
+        }
+    }
+
+    private static int count(Connection connection, String table) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM " + table);
+             ResultSet set = statement.executeQuery()) {
+            return set.next() ? set.getInt(1) : 0;
+        }
+    }
+
+    private static List<String> write(Connection connection, boolean sqlite, boolean upsert) throws SQLException {
+        createTables(connection, sqlite);
+        FloodgateUpsert statements = new FloodgateUpsert(sqlite, true);
+        FloodgateDictionary.Ids ids = new FloodgateDictionary(null, sqlite).newIds();
+        String sql = upsert ? statements.getUpsertSql() : statements.getUpdateSql();
+        // H2 has the database time in seconds only
+        long before = System.currentTimeMillis() / 1000L * 1000L;
+        for (List<FloodgatePlayerData> step : STEPS) {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                if (upsert) {
+                    statements.upsert(statement, step, ids);
+                } else {
+                    statements.updateOrInsert(statement, step, ids);
+                }
+            }
+        }
+        long after = System.currentTimeMillis();
+
+        // The updated column comes from the database's clock, which is this machine's clock in the tests
+        List<String> rows = new ArrayList<>();
+        for (String row : readRows(connection)) {
+            int separator = row.lastIndexOf('|');
+            long updated = Long.parseLong(row.substring(separator + 1));
+            assertTrue(before <= updated && updated <= after, () -> "updated " + updated + " of " + row);
+            rows.add(row.substring(0, separator));
+        }
+        return rows;
+    }
+
+    static String createTableSql(boolean sqlite) {
+        return "CREATE TABLE plan_platforms (" +
+                "id int " + (sqlite ? "PRIMARY KEY" : "NOT NULL AUTO_INCREMENT") + ',' +
+                "uuid varchar(36) NOT NULL UNIQUE," +
+                "platform int NOT NULL," +
+                "bedrockUsername VARCHAR(32) NOT NULL UNIQUE," +
+                "javaUsername VARCHAR(16) NOT NULL," +
+                "linkedPlayer VARCHAR(16) NULL," +
+                "languageCode VARCHAR(8) NOT NULL," +
+                "version VARCHAR(16) NOT NULL," +
+                "updated bigint NOT NULL DEFAULT 0," +
+                "languageId int NOT NULL DEFAULT 0," +
+                "versionId int NOT NULL DEFAULT 0" +
+                (sqlite ? "" : ",PRIMARY KEY (id)") +
+                ")";
+    }
+
+    static void createTables(Connection connection, boolean sqlite) throws SQLException {
+        for (String sql : Arrays.asList(
+                createTableSql(sqlite),
+                FloodgateDictionary.createTableSql("plan_platform_languages", "languageCode", 8, sqlite),
+                FloodgateDictionary.createTableSql("plan_platform_versions", "version", 16, sqlite))) {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.execute();
+            }
+        }
+    }
+
+    /**
+     * Read the rows with the values of the dictionary tables, the tables must exist.
+     */
+    static List<String> readRows(Connection connection) throws SQLException {
+        FloodgateDictionary dictionary = new FloodgateDictionary(null, false);
+        dictionary.setAvailable(true);
+        List<String> rows = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT p.uuid, p.platform, p.bedrockUsername, " +
+                "p.javaUsername, p.linkedPlayer, " + dictionary.languageCode() + ", " + dictionary.version() + ", " +
+                "p.updated FROM " + dictionary.tables() + " ORDER BY p.uuid");
+             ResultSet set = statement.executeQuery()) {
+            while (set.next()) {
+                StringBuilder row = new StringBuilder(set.getString(1));
+                for (int column = 2; column <= 8; column++) {
+                    row.append('|').append(set.getString(column));
+                }
+                rows.add(row.toString());
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import com.djrapitops.plan.extension.Caller;
+import org.geysermc.floodgate.util.DeviceOs;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FloodgateWriteQueueTest {
+
+    @TempDir
+    Path tempDir;
+    private TestQueryService database;
+    private FloodgateStorage storage;
+
+    @BeforeAll
+    static void flushEveryThreeJoins() {
+        System.setProperty("plan.floodgate.write.batch-size", "3");
+    }
+
+    @AfterAll
+    static void resetSettings() {
+        System.clearProperty("plan.floodgate.write.batch-size");
+    }
+
+    @AfterEach
+    void closeDatabase() throws Exception {
+        if (storage != null) storage.close();
+        if (database != null) database.close();
+    }
+
+    static Caller caller() {
+        return new Caller() {
+            @Override
+            public void updatePlayerData(UUID playerUUID, String playerName) {
+                // Not needed for the tests
+            }
+
+            @Override
+            public void updateServerData() {
+                // Not needed for the tests
+            }
+        };
+    }
+
+    private static FloodgateJoin join(int number) {
+        UUID playerUUID = UUID.fromString("00000000-0009-0000-0000-00000000000" + number);
+        return new FloodgateJoin(new FloodgatePlayerData(playerUUID, DeviceOs.GOOGLE, "Player" + number,
+                "Player" + number, null, "en_US", "1.17.0"), "Player" + number, System.nanoTime());
+    }
+
+    private FloodgateWriteQueue startQueue() throws Exception {
+        database = TestQueryService.sqlite("jdbc:sqlite:" + tempDir.resolve("database.db"));
+        storage = FloodgateStorageTest.startStorage(database);
+        return new FloodgateWriteQueue(storage, new FloodgateRefreshScheduler(caller(), 10, storage.getMetrics()));
+    }
+
+    private long awaitHandled(int joins) throws InterruptedException {
+        FloodgateMetrics metrics = storage.getMetrics();
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (metrics.getWrittenJoins() + metrics.getFailedJoins() < joins && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        return metrics.getWrittenJoins() + metrics.getFailedJoins();
+    }
+
+    @Test
+    void failedBatchIsWrittenOneByOne() throws Exception {
+        FloodgateWriteQueue queue = startQueue();
+        database.failNext(1);
+        for (int number = 1; number <= 3; number++) {
+            queue.offer(join(number));
+        }
+
+        assertEquals(3, awaitHandled(3));
+        assertEquals(3, storage.getMetrics().getWrittenJoins());
+        assertEquals(0, storage.getMetrics().getFailedJoins());
+        assertEquals(3, FloodgateUpsertTest.readRows(database.getConnection()).size());
+    }
+
+    @Test
+    void rowThatFailsAloneIsDropped() throws Exception {
+        FloodgateWriteQueue queue = startQueue();
+        // The batch and the first row written alone fail
+        database.failNext(2);
+        for (int number = 1; number <= 3; number++) {
+            queue.offer(join(number));
+        }
+
+        assertEquals(3, awaitHandled(3));
+        assertEquals(2, storage.getMetrics().getWrittenJoins());
+        assertEquals(1, storage.getMetrics().getFailedJoins());
+        assertEquals(2, FloodgateUpsertTest.readRows(database.getConnection()).size());
+    }
+
+    @Test
+    void closeWritesQueuedJoinsAndStopsThreads() throws Exception {
+        FloodgateWriteQueue queue = startQueue();
+        queue.offer(join(1));
+        queue.offer(join(2));
+
+        queue.close();
+        storage.close();
+
+        assertTrue(storage.getScheduler().isTerminated());
+        assertEquals(2, FloodgateUpsertTest.readRows(database.getConnection()).size());
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright(c) 2020 AuroraLS3
+ *
+ * The MIT License(MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files(the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions :
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.playeranalytics.extension.floodgate;
+
+import com.djrapitops.plan.query.QueryService;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * QueryService backed by one JDBC connection, with injectable failures and latency.
+ * <p>
+ * Like Plan, statements given to execute run in transactions on one thread, and queries run on the calling thread.
+ * {@link #getAsyncPool()} stands in for Plan's async pool.
+ * The service is a dynamic proxy so that it does not depend on the exact method set of the Plan API version.
+ */
+final class TestQueryService implements InvocationHandler {
+
+    private final Connection connection;
+    private final String dbType;
+    private final ExecutorService transactions;
+    private final ExecutorService asyncPool;
+    private final List<Object> playerRemoveListeners = new CopyOnWriteArrayList<>();
+    private final List<Object> dataClearListeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long delayMs = 0L;
+    private final AtomicInteger queries = new AtomicInteger();
+    private final List<String> querySql = new CopyOnWriteArrayList<>();
+    private final AtomicInteger executions = new AtomicInteger();
+    private final AtomicInteger asyncTasks = new AtomicInteger();
+
+    private TestQueryService(Connection connection, String dbType) {
+        this.connection = connection;
+        this.dbType = dbType;
+        this.transactions = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Test DB Transaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.asyncPool = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Test Plan Async");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param url JDBC url of a SQLite database, such as jdbc:sqlite:file.db
+     */
+    static TestQueryService sqlite(String url) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try (PreparedStatement statement = connection.prepareStatement("PRAGMA busy_timeout = 10000")) {
+            statement.execute();
+        }
+        return new TestQueryService(connection, "SQLITE");
+    }
+
+    /**
+     * @param name Name of an in-memory H2 database in MySQL mode, shared by services with the same name
+     */
+    static TestQueryService h2MySQL(String name) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:h2:mem:" + name + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        return new TestQueryService(connection, "MYSQL");
+    }
+
+    QueryService getService() {
+        return (QueryService) Proxy.newProxyInstance(
+                QueryService.class.getClassLoader(), new Class<?>[]{QueryService.class}, this);
+    }
+
+    /**
+     * @return Executor like SchedulerService.runAsync of Plan, give it to FloodgateStorage
+     */
+    Executor getAsyncPool() {
+        return task -> {
+            asyncTasks.incrementAndGet();
+            asyncPool.execute(task);
+        };
+    }
+
+    int getAsyncTasks() {
+        return asyncTasks.get();
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Make the next calls fail like Plan does when the database fails.
+     *
+     * @param count Amount of calls that fail
+     */
+    void failNext(int count) {
+        failures.set(count);
+    }
+
+    /**
+     * @param delayMs Latency added to every call
+     */
+    void setDelay(long delayMs) {
+        this.delayMs = delayMs;
+    }
+
+    int getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * @return SQL of the queries so far, in order
+     */
+    List<String> getQuerySql() {
+        return querySql;
+    }
+
+    int getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * Wait for the statements given to execute so far.
+     */
+    void awaitTransactions() throws ExecutionException, InterruptedException {
+        transactions.submit(() -> null).get();
+    }
+
+    /**
+     * Hold the statements given to execute until the latch is released, queries still run.
+     */
+    void holdTransactions(CountDownLatch release) {
+        transactions.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    void removePlayer(UUID playerUUID) throws Throwable {
+        for (Object listener : playerRemoveListeners) {
+            callFunction(listener, playerUUID);
+        }
+    }
+
+    void clearData() throws Throwable {
+        for (Object listener : dataClearListeners) {
+            callFunction(listener);
+        }
+    }
+
+    void close() throws SQLException, InterruptedException {
+        asyncPool.shutdown();
+        transactions.shutdown();
+        transactions.awaitTermination(10, TimeUnit.SECONDS);
+        connection.close();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "getDBType":
+                return dbType;
+            case "query":
+                return query((String) args[0], args[1]);
+            case "execute":
+                return execute((String) args[0], args[1]);
+            case "subscribeToPlayerRemoveEvent":
+                playerRemoveListeners.add(args[0]);
+                return null;
+            case "subscribeDataClearEvent":
+                dataClearListeners.add(args[0]);
+                return null;
+            case "getServerUUID":
+                return Optional.empty();
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "TestQueryService(" + dbType + ")";
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    private Object query(String sql, Object function) throws Throwable {
+        queries.incrementAndGet();
+        querySql.add(sql);
+        simulateDatabase();
+        synchronized (connection) {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                return callFunction(function, statement);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private CompletableFuture<Object> execute(String sql, Object function) {
+        executions.incrementAndGet();
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        transactions.execute(() -> {
+            try {
+                simulateDatabase();
+                synchronized (connection) {
+                    connection.setAutoCommit(false);
+                    try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                        callFunction(function, statement);
+                        connection.commit();
+                    } catch (Throwable e) {
+                        connection.rollback();
+                        throw e;
+                    } finally {
+                        connection.setAutoCommit(true);
+                    }
+                }
+                future.complete(null);
+            } catch (Throwable e) {
+                future.completeExceptionally(e instanceof SQLException ? new IllegalStateException(e) : e);
+            }
+        });
+        return future;
+    }
+
+    private void simulateDatabase() throws InterruptedException {
+        long delay = delayMs;
+        if (delay > 0) Thread.sleep(delay);
+        if (failures.getAndUpdate(left -> Math.max(0, left - 1)) > 0) {
+            throw new IllegalStateException("Injected database failure");
+        }
+    }
+
+    private static Object callFunction(Object function, Object... arguments) throws Throwable {
+        // The functional interfaces of the Plan API are called through their only abstract method
+        for (Class<?> type : function.getClass().getInterfaces()) {
+            for (Method method : type.getMethods()) {
+                if (!Modifier.isAbstract(method.getModifiers())) continue;
+                try {
+                    return method.invoke(function, arguments);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+        throw new IllegalArgumentException("Not a functional interface: " + function.getClass());
+    }
+}